@@ -1,21 +1,43 @@
+-- Reference copy of the schema DatabaseManager.ensureSchema creates; the code is authoritative.
+
+-- Interned directories; path ends with the separator, so a file's path = dirs.path || files.name
+CREATE TABLE IF NOT EXISTS dirs (
+  id                INTEGER PRIMARY KEY,
+  path              TEXT UNIQUE NOT NULL
+);
+
 -- Master list
 CREATE TABLE IF NOT EXISTS files (
   id                INTEGER PRIMARY KEY,
-  path              TEXT NOT NULL UNIQUE,
-  parent_path       TEXT NOT NULL,
+  dir_id            INTEGER NOT NULL REFERENCES dirs(id),
+  name              TEXT NOT NULL,
   size_bytes        INTEGER NOT NULL,
   mtime_unix        INTEGER NOT NULL,
   ctime_unix        INTEGER,
-  last_scanned_unix INTEGER NOT NULL DEFAULT 0,
-  content_hash      TEXT,
-  kind              TEXT,      -- image, text, pdf, etc.
-  type_label        TEXT,      -- Ai labels in future
-  ext               TEXT       -- jpg, txt, pdf, etc.
+  last_scanned_unix INTEGER NOT NULL,
+  content_hash      TEXT,      -- sha256, dropped when size or mtime change
+  kind              TEXT,      -- mime type, or 'missing'
+  type_label        TEXT,      -- Ai labels
+  type_label_confidence REAL,
+  type_label_source TEXT,
+  type_label_updated_unix INTEGER,
+  ext               TEXT,      -- jpg, txt, pdf, etc.
+  ai_safety         TEXT,
+  ai_response       TEXT,
+  quick_hash        INTEGER,   -- XXH64 of head and tail blocks; with size_bytes it keys possible duplicates
+  file_key          TEXT,      -- device/inode, used to recognise renames
+  prior_kind        TEXT,      -- kind before the row was marked missing
+  UNIQUE(dir_id, name)
 );
 
+-- Full paths for ad-hoc queries
+CREATE VIEW IF NOT EXISTS file_paths AS
+  SELECT d.path || f.name AS path, f.*
+  FROM files f JOIN dirs d ON d.id = f.dir_id;
+
 -- Images
 CREATE TABLE IF NOT EXISTS image_meta (
-  path            TEXT PRIMARY KEY REFERENCES files(path) ON DELETE CASCADE,
+  file_id         INTEGER PRIMARY KEY REFERENCES files(id) ON DELETE CASCADE,
   width           INTEGER,
   height          INTEGER,
   exif_taken_unix INTEGER,
@@ -23,43 +45,78 @@ CREATE TABLE IF NOT EXISTS image_meta (
   camera_model    TEXT
 );
 
--- History, not used yet
+-- Label history
 CREATE TABLE IF NOT EXISTS label_history (
   id            INTEGER PRIMARY KEY,
-  path          TEXT NOT NULL REFERENCES files(path) ON DELETE CASCADE,
+  file_id       INTEGER NOT NULL REFERENCES files(id) ON DELETE CASCADE,
   label         TEXT,
   confidence    REAL,
   source        TEXT,
   created_unix  INTEGER NOT NULL
 );
 
--- Folders
-CREATE TABLE IF NOT EXISTS folders (
-  path              TEXT PRIMARY KEY,
-  last_scanned_unix INTEGER NOT NULL DEFAULT 0,
-  priority          INTEGER NOT NULL DEFAULT 0,
-  exclude           INTEGER NOT NULL DEFAULT 0
-);
-
 -- Queue worker
 CREATE TABLE IF NOT EXISTS scan_queue (
   id               INTEGER PRIMARY KEY,
   path             TEXT NOT NULL,
   kind             TEXT NOT NULL,                -- folder, file, image, etc.
-  not_before_unix  INTEGER NOT NULL DEFAULT 0,
+  not_before_unix  INTEGER NOT NULL,
   attempts         INTEGER NOT NULL DEFAULT 0,
+  lease_owner      TEXT,                         -- worker holding the task
+  lease_until_unix INTEGER,
+  priority         INTEGER NOT NULL DEFAULT 5,   -- 0 watcher, 5 crawls, 9 idle; lower runs first
+  last_error       TEXT,
   UNIQUE(path, kind)
 );
 
--- Helpful indexes
-CREATE INDEX IF NOT EXISTS ix_files_kind_parent_path_path
-  ON files(kind, parent_path, path);
+-- Tasks that failed too often
+CREATE TABLE IF NOT EXISTS scan_dead (
+  path             TEXT NOT NULL,
+  kind             TEXT NOT NULL,
+  attempts         INTEGER NOT NULL,
+  last_error       TEXT,
+  failed_unix      INTEGER NOT NULL,
+  PRIMARY KEY(path, kind)
+);
+
+-- Passive trickle position per root
+CREATE TABLE IF NOT EXISTS crawl_cursor (
+  root              TEXT PRIMARY KEY,
+  cursor_path       TEXT,
+  pass_started_unix INTEGER NOT NULL,
+  passes            INTEGER NOT NULL DEFAULT 0
+);
+
+-- First crawl of an empty database; one row per unit plus '*' for the whole load
+CREATE TABLE IF NOT EXISTS bulk_state (
+  unit             TEXT PRIMARY KEY,
+  done_unix        INTEGER
+);
+
+-- Helpful indexes (dropped during a bulk load and built when it finishes)
+CREATE INDEX IF NOT EXISTS ix_label_history_file
+  ON label_history(file_id);
+
+CREATE INDEX IF NOT EXISTS ix_files_kind_dir
+  ON files(kind, dir_id);
+
+CREATE INDEX IF NOT EXISTS ix_files_ext_dir
+  ON files(ext, dir_id);
+
+CREATE INDEX IF NOT EXISTS ix_files_size_quick
+  ON files(size_bytes, quick_hash);
+
+CREATE INDEX IF NOT EXISTS ix_files_missing_size_mtime
+  ON files(size_bytes, mtime_unix) WHERE kind='missing';
+
+CREATE INDEX IF NOT EXISTS ix_queue_sched
+  ON scan_queue(kind, priority, not_before_unix, id);
 
-CREATE INDEX IF NOT EXISTS ix_files_ext_parent_path_path
-  ON files(ext, parent_path, path);
+CREATE INDEX IF NOT EXISTS ix_queue_lease
+  ON scan_queue(lease_owner);
 
-CREATE INDEX IF NOT EXISTS ix_files_parent
-  ON files(parent_path);
+CREATE INDEX IF NOT EXISTS ix_queue_next_due
+  ON scan_queue(not_before_unix) WHERE lease_until_unix IS NULL;
 
-CREATE INDEX IF NOT EXISTS ix_queue_due
-  ON scan_queue(not_before_unix, kind, id);
+CREATE INDEX IF NOT EXISTS ix_queue_lease_until
+  ON scan_queue(lease_until_unix) WHERE lease_until_unix IS NOT NULL;
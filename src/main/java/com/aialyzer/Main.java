@@ -1,12 +1,17 @@
 package com.aialyzer;
 
+import com.aialyzer.indexer.DatabaseManager;
+import com.aialyzer.indexer.DatabasePool;
+import com.aialyzer.indexer.BulkLoader;
 import com.aialyzer.indexer.FsIndexer;
+import com.aialyzer.indexer.IoGovernor;
+import com.aialyzer.indexer.KnownFiles;
+import com.aialyzer.indexer.PathFilter;
 import com.aialyzer.queueworker.QueueWorker;
 
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
-import java.sql.Connection;
 import java.time.Instant;
 import java.util.ArrayList;
 import java.util.List;
@@ -18,9 +23,15 @@ public final class Main {
     String dbPath,
     boolean passive,
     boolean once,
+    boolean incremental,
+    boolean bulk,
     List<Path> roots,
     int threads,
-    int maxFps
+    int maxFps,
+    long passIntervalSeconds,
+    int commitEvery,
+    List<String> includeExt,
+    List<String> excludeDirs
     ) {}
 
     public static void main(String[] args) {
@@ -35,6 +46,8 @@ public final class Main {
         }
 
         try {
+            PathFilter.install(new PathFilter(cfg.includeExt(), cfg.excludeDirs()));
+
             Path dbFile = Paths.get(cfg.dbPath()).toAbsolutePath();
             Path dbDir = dbFile.getParent();
             if (dbDir != null) {
@@ -42,26 +55,57 @@ public final class Main {
             }
             Class.forName("org.sqlite.JDBC");
 
-            try (Connection cx = com.aialyzer.indexer.DatabaseManager.open(dbFile)) {
+            // one writer shared by every component, readers for queries that must not wait on it
+            int readers = Math.max(2, Math.min(4, cfg.threads()));
+            try (DatabasePool db = DatabaseManager.openPool(dbFile, readers)) {
+
+                KnownFiles known = null;
+                if (cfg.incremental() && !cfg.roots().isEmpty()) {
+                    known = db.read(KnownFiles::load);
+                    System.out.printf("Incremental: %,d known files (%,d MB).%n",
+                            known.size(), known.memoryBytes() >> 20);
+                }
 
-                if (!cfg.roots().isEmpty()) {
+                if (!cfg.roots().isEmpty() && cfg.bulk() && BulkLoader.wanted(db)) {
+                    // empty (or half-loaded) database: write rows straight from the walk
+                    System.out.println("Bulk loading roots...");
+                    new BulkLoader(db, cfg.threads()).load(cfg.roots());
+                    System.out.println("Bulk load complete.");
+                } else if (!cfg.roots().isEmpty()) {
                     if (!cfg.passive()) {
                         System.out.println("Active full crawl...");
-                        new com.aialyzer.indexer.ActiveScanner(cx, cfg.roots(), cfg.threads(), 8192, 800).run();
+                        com.aialyzer.indexer.ActiveScanner active =
+                                new com.aialyzer.indexer.ActiveScanner(db, cfg.roots(), cfg.threads(), 8192, 800, known);
+                        // Ctrl-C stops the walk but lets the writer commit what it was handed
+                        Thread stopCrawl = new Thread(() -> {
+                            active.cancel();
+                            try { active.awaitDone(10_000); } catch (InterruptedException ignore) { }
+                        });
+                        Runtime.getRuntime().addShutdownHook(stopCrawl);
+                        try {
+                            active.run();
+                        } finally {
+                            try { Runtime.getRuntime().removeShutdownHook(stopCrawl); } catch (IllegalStateException ignore) { }
+                        }
                         System.out.println("Active crawl complete.");
                     } else {
                         System.out.println("Indexing roots...");
-                        new FsIndexer(cx).indexRoots(cfg.roots());
+                        new FsIndexer(db, cfg.commitEvery(), known).indexRoots(cfg.roots());
                         System.out.println("Indexing complete.");
                     }
+                    if (known != null) {
+                        System.out.println("Incremental: " + known.enqueueMissing(db, cfg.roots()) + " files gone.");
+                    }
                 }
 
-        Connection cxScan = null;
+        // passive work is paced by measured host load instead of fixed sleeps
+        final IoGovernor governor = cfg.passive() ? IoGovernor.start() : null;
+
         com.aialyzer.indexer.PassiveScanner passiveScanner = null;
         try {
             if (cfg.passive() && !cfg.once() && !cfg.roots().isEmpty()) {
-                cxScan = com.aialyzer.indexer.DatabaseManager.open(dbFile);
-                passiveScanner = new com.aialyzer.indexer.PassiveScanner(cxScan, cfg.roots(), cfg.maxFps());
+                passiveScanner = new com.aialyzer.indexer.PassiveScanner(db, cfg.roots(), cfg.maxFps(), known, governor,
+                        cfg.passIntervalSeconds());
                 passiveScanner.startAsync();
                 System.out.println("PassiveScanner started (background, max-fps=" + cfg.maxFps() + ").");
             }
@@ -70,16 +114,15 @@ public final class Main {
             e.printStackTrace();
         }
 
-        QueueWorker worker = new QueueWorker(cx, cfg.passive());
+        QueueWorker worker = new QueueWorker(db, cfg.passive(), cfg.passive() ? 1 : cfg.threads(), governor, known);
 
         final com.aialyzer.indexer.PassiveScanner psRef = passiveScanner;
-        final Connection scanConnRef = cxScan;
 
         Runtime.getRuntime().addShutdownHook(new Thread(() -> {
             try {
                 System.out.println("\nShutting down at " + Instant.now());
                 if (psRef != null) psRef.close();
-                if (scanConnRef != null && !scanConnRef.isClosed()) scanConnRef.close();
+                if (governor != null) governor.close();
             } catch (Exception ignore) { }
         }));
 
@@ -103,10 +146,16 @@ public final class Main {
         String dbPath = "data/app.db";
         boolean passive = true;
         boolean once = false;
+        boolean incremental = false;
+        Boolean bulk = null;   // default: active mode only
         List<Path> roots = new ArrayList<>();
 
         int threads = Math.max(2, Runtime.getRuntime().availableProcessors());
         int maxFps  = 40; // passive trickle default
+        long passInterval = com.aialyzer.indexer.PassiveScanner.DEFAULT_PASS_INTERVAL_SECONDS;
+        int commitEvery = FsIndexer.DEFAULT_COMMIT_EVERY;
+        List<String> includeExt = null;   // null keeps the built-in media/doc types
+        List<String> excludeDirs = new ArrayList<>(PathFilter.DEFAULT_EXCLUDED_DIRS);
 
         for (int i = 0; i < args.length; i++) {
             switch (args[i]) {
@@ -116,6 +165,9 @@ public final class Main {
                 case "--active" -> passive = false;
                 case "--passive" -> passive = true;
                 case "--once" -> once = true;
+                case "--incremental" -> incremental = true;
+                case "--bulk" -> bulk = true;
+                case "--no-bulk" -> bulk = false;
                 case "--root" -> {
                    if (i + 1 < args.length) roots.add(Paths.get(args[++i]));
                 }
@@ -133,6 +185,29 @@ public final class Main {
                         } catch (NumberFormatException ignore) {}
                     }
                 }
+                case "--pass-interval" -> {
+                    if (i + 1 < args.length) {
+                        try {
+                            passInterval = Math.max(0, Long.parseLong(args[++i])) * 60;
+                        } catch (NumberFormatException ignore) {}
+                    }
+                }
+                case "--commit-every" -> {
+                    if (i + 1 < args.length) {
+                        try {
+                            commitEvery = Math.max(1, Integer.parseInt(args[++i]));
+                        } catch (NumberFormatException ignore) {}
+                    }
+                }
+                case "--include-ext" -> {
+                    if (i + 1 < args.length) {
+                        if (includeExt == null) includeExt = new ArrayList<>();
+                        includeExt.addAll(List.of(args[++i].split(",")));
+                    }
+                }
+                case "--exclude-dir" -> {
+                    if (i + 1 < args.length) excludeDirs.addAll(List.of(args[++i].split(",")));
+                }
                 case "--help", "-h" -> {
                     printHelp();
                     System.exit(0);
@@ -141,7 +216,8 @@ public final class Main {
         }
         }
 
-        return new Config(dbPath, passive, once, roots, threads, maxFps);
+        return new Config(dbPath, passive, once, incremental, bulk != null ? bulk : !passive, roots, threads, maxFps, passInterval, commitEvery,
+                includeExt, excludeDirs);
     }
 
 
@@ -154,10 +230,23 @@ public final class Main {
               --active           Run worker in active mode (bigger batches)
               --passive          Run worker in passive mode (default, small batch)
               --once             Runs the worker once then exits
+              --incremental      Only enqueue files whose size/mtime changed since the last scan
 
               # New (optional):
-              --threads <n>      Active mode: number of scan threads (default: CPU cores)
-              --max-fps <n>      Passive mode: trickle crawl files/sec budget (default: 40)
+              --threads <n>      Active mode: number of scan and worker threads (default: CPU cores)
+              --max-fps <n>      Passive mode: trickle crawl files/sec on an idle host; scaled down
+                                 automatically under I/O pressure or load (default: 40)
+              --pass-interval <min> Passive mode: minutes from the start of one trickle pass over
+                                 a root to the start of the next (default: 60)
+              --commit-every <n> Passive mode: files per commit while indexing roots (default: 5000)
+              --include-ext <list> Comma-separated extensions to scan, replacing the built-in
+                                 media/doc list; "*" scans every file (can repeat)
+              --exclude-dir <list> Comma-separated directory names to skip, added to
+                                 $recycle.bin, node_modules and .git (can repeat)
+              --bulk             Bulk-load an empty database even in passive mode (all cores,
+                                 no --max-fps pacing); the default in active mode only
+              --no-bulk          Crawl an empty database through the queue instead of
+                                 bulk-loading it
 
               --help             Show help
             """);
@@ -1,79 +1,268 @@
 package com.aialyzer.indexer;
 
+import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.nio.file.Path;
-import java.sql.Connection;
 import java.sql.PreparedStatement;
+import java.sql.SQLException;
 import java.time.Instant;
+import java.util.Arrays;
 import java.util.List;
+import java.util.Map;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
 
+// Full crawl as a two-stage pipeline: walker threads -> bounded queue of batches -> one writer
+// thread. Each walker thread fills its own PathBatch (all paths in one char[], end offsets in
+// an int[]) and hands it over when full, so the queue holds a few large arrays instead of one
+// Path per file and its memory is bounded by capacity x batch size.
+// Both stages are timed: walkers blocked on a full queue mean SQLite is the bottleneck, the
+// writer waiting on an empty queue means the walk (the disk) is. A progress line is printed
+// every few seconds and a verdict at the end.
+// The first failure on either side stops both and is rethrown by run(); cancel() stops the
+// walk, and run() then throws CancellationException once the writer has committed what it has.
 public final class ActiveScanner {
-  private final Connection cx;
+  private static final long REPORT_EVERY_SECONDS = 5;
+  private static final long HANDOFF_CHECK_MS = 100;    // how often a blocked walker rechecks for failure
+  private static final PathBatch END = new PathBatch(0);
+
+  private final DatabasePool db;
   private final List<Path> roots;
   private final int threads;
-  private final int queueSize;
+  private final int queueBatches;
   private final int batchSize;
+  private final KnownFiles known;   // null for a full re-enqueue
+
+  private final BlockingQueue<PathBatch> q;
+  private final Map<Thread, PathBatch> open = new ConcurrentHashMap<>();   // a walker thread's partial batch
+  private final AtomicReference<Exception> failure = new AtomicReference<>();
+  private final CountDownLatch done = new CountDownLatch(1);
+  private volatile boolean cancelled;
 
-  public ActiveScanner(Connection cx, List<Path> roots) {
-    this(cx, roots, Math.max(2, Runtime.getRuntime().availableProcessors()), 8192, 800);
+  // stage metrics
+  private final LongAdder walked = new LongAdder();       // files reported by the walk
+  private final LongAdder handed = new LongAdder();       // paths handed to the writer
+  private final LongAdder walkStallNanos = new LongAdder();
+  private final LongAdder written = new LongAdder();
+  private final LongAdder writeNanos = new LongAdder();
+  private final LongAdder writeIdleNanos = new LongAdder();
+  private volatile int maxDepth;
+  private long startedNanos;
+
+  public ActiveScanner(DatabasePool db, List<Path> roots) {
+    this(db, roots, Math.max(2, Runtime.getRuntime().availableProcessors()), 8192, 800);
   }
 
-  public ActiveScanner(Connection cx, List<Path> roots, int threads, int queueSize, int batchSize) {
-    this.cx = cx; this.roots = roots;
-    this.threads = threads; this.queueSize = queueSize; this.batchSize = Math.max(100, batchSize);
+  public ActiveScanner(DatabasePool db, List<Path> roots, int threads, int queueSize, int batchSize) {
+    this(db, roots, threads, queueSize, batchSize, null);
   }
 
-  // Full crawl 
+  // queueSize is in paths, as before; the queue holds queueSize / batchSize batches
+  public ActiveScanner(DatabasePool db, List<Path> roots, int threads, int queueSize, int batchSize, KnownFiles known) {
+    this.db = db; this.roots = roots;
+    this.threads = Math.max(1, threads); this.batchSize = Math.max(100, batchSize);
+    this.queueBatches = Math.max(2, queueSize / this.batchSize);
+    this.known = known;
+    this.q = new ArrayBlockingQueue<>(queueBatches);
+  }
+
+  // Full crawl
   public void run() throws Exception {
-    final BlockingQueue<Path> q = new ArrayBlockingQueue<>(queueSize);
-    final ExecutorService pool = Executors.newFixedThreadPool(threads);
     final long now = Instant.now().getEpochSecond();
+    startedNanos = System.nanoTime();
+
+    final Thread writer = new Thread(() -> drain(now), "ActiveScanner-Writer");
+    writer.start();
+    ScheduledExecutorService reporter = Executors.newSingleThreadScheduledExecutor(r -> {
+      Thread t = new Thread(r, "ActiveScanner-Report");
+      t.setDaemon(true);
+      return t;
+    });
+    reporter.scheduleAtFixedRate(() -> report("progress"), REPORT_EVERY_SECONDS, REPORT_EVERY_SECONDS, TimeUnit.SECONDS);
 
-    cx.setAutoCommit(false);
-    try (PreparedStatement ps = cx.prepareStatement(
-      "insert into scan_queue(path,kind,not_before_unix,attempts) values (?,?,?,0) " +
-      "on conflict(path,kind) do update set not_before_unix=excluded.not_before_unix")) {
-
-      // batch DB upserts
-      final Thread writer = new Thread(() -> {
-        int pending = 0;
-        try {
-          while (true) {
-            Path p = q.poll(250, TimeUnit.MILLISECONDS);
-            if (p == POISON) break;
-            if (p == null) continue;
-            ps.setString(1, p.toString());
-            ps.setString(2, "file");
-            ps.setLong(3, now);
-            ps.addBatch();
-            if (++pending >= batchSize) { ps.executeBatch(); try { cx.commit(); } catch (Exception ignore) {} pending = 0; }
+    try {
+      // walk all roots in parallel, subdirectories are split across the threads
+      try {
+        new ParallelFileWalker(threads).walk(roots, (file, attrs) -> {
+          checkRunning();
+          walked.increment();
+          if (known != null && !known.changed(file, attrs)) return;
+          PathBatch b = open.computeIfAbsent(Thread.currentThread(), t -> new PathBatch(batchSize));
+          b.add(file.toString());
+          if (b.full()) {
+            open.remove(Thread.currentThread());
+            hand(b);
           }
-          if (pending > 0) { ps.executeBatch(); try { cx.commit(); } catch (Exception ignore) {} }
-        } catch (Exception ignore) {}
-      }, "ActiveScanner-Writer");
-      writer.start();
-
-      // walk all roots with FileScanner
-      for (Path root : roots) {
-        pool.submit(() -> {
-          try {
-            FileScanner.walk(root, (file, attrs) -> {
-              while (true) {
-                try { q.put(file); break; } catch (InterruptedException ie) { Thread.currentThread().interrupt(); return; }
-              }
-            });
-          } catch (Exception ignore) {}
         });
+        // the walk's threads are gone; their partial batches go last
+        for (PathBatch b : open.values()) {
+          if (b.size() > 0) hand(b);
+        }
+      } catch (IOException e) {
+        failure.compareAndSet(null, e);
       }
-
-      pool.shutdown();
-      pool.awaitTermination(365, TimeUnit.DAYS);
-      q.offer(POISON);
+      // the writer commits what it already has, then stops
+      while (writer.isAlive() && !q.offer(END, HANDOFF_CHECK_MS, TimeUnit.MILLISECONDS)) {}
       writer.join();
+    } catch (InterruptedException e) {
+      // the writer may be blocked in take(): it stops at END, or at once when interrupted
+      cancelled = true;
+      failure.compareAndSet(null, new InterruptedIOException("active crawl interrupted"));
+      if (!q.offer(END)) writer.interrupt();
+      joinUninterruptibly(writer);
+      Thread.currentThread().interrupt();
     } finally {
-      try { cx.setAutoCommit(true); } catch (Exception ignore) {}
+      reporter.shutdownNow();
+      done.countDown();
     }
+
+    report("done");
+    Exception e = failure.get();
+    if (e == null) System.out.println(verdict());
+    if (cancelled && e instanceof InterruptedIOException) throw new CancellationException("active crawl cancelled");
+    if (e != null) throw e;
+  }
+
+  private static void joinUninterruptibly(Thread t) {
+    boolean interrupted = false;
+    while (t.isAlive()) {
+      try {
+        t.join();
+      } catch (InterruptedException e) {
+        interrupted = true;
+      }
+    }
+    if (interrupted) Thread.currentThread().interrupt();
   }
 
-  private static final Path POISON = Path.of("_ACTIVE_SCANNER_DONE_");
+  // Stops the walk; the writer commits the batches already handed over. Safe from any thread.
+  public void cancel() {
+    cancelled = true;
+  }
+
+  // Waits for run() to return, e.g. from a shutdown hook after cancel()
+  public boolean awaitDone(long timeoutMillis) throws InterruptedException {
+    return done.await(timeoutMillis, TimeUnit.MILLISECONDS);
+  }
+
+  // Called by walker threads
+  private void checkRunning() throws IOException {
+    if (cancelled) throw new InterruptedIOException("active crawl cancelled");
+    if (failure.get() != null) throw new IOException("active crawl writer failed", failure.get());
+  }
+
+  // Blocks while the queue is full; the time spent is the walk's stall
+  private void hand(PathBatch b) throws IOException {
+    long t0 = System.nanoTime();
+    try {
+      while (!q.offer(b, HANDOFF_CHECK_MS, TimeUnit.MILLISECONDS)) checkRunning();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("interrupted handing a batch to the writer");
+    } finally {
+      walkStallNanos.add(System.nanoTime() - t0);
+    }
+    handed.add(b.size());
+    int depth = q.size();
+    if (depth > maxDepth) maxDepth = depth;   // racy, good enough for a report
+  }
+
+  // Writer thread: one transaction per batch until END or the first failure
+  private void drain(long now) {
+    try {
+      while (true) {
+        long t0 = System.nanoTime();
+        PathBatch b = q.take();
+        long t1 = System.nanoTime();
+        writeIdleNanos.add(t1 - t0);
+        if (b == END) break;
+        write(b, now);
+        writeNanos.add(System.nanoTime() - t1);
+        written.add(b.size());
+      }
+    } catch (InterruptedException e) {
+      failure.compareAndSet(null, new InterruptedIOException("active crawl writer interrupted"));
+    } catch (Exception e) {
+      failure.compareAndSet(null, e);
+    } finally {
+      q.clear();   // unblocks a walker waiting to hand over
+    }
+  }
+
+  private void write(PathBatch batch, long now) throws SQLException {
+    db.write(cx -> {
+      PreparedStatement ps = StatementCache.of(cx).get(DatabaseManager.ENQUEUE_SQL);
+      for (int i = 0; i < batch.size(); i++) {
+        ps.setString(1, batch.path(i));
+        ps.setString(2, "file");
+        ps.setLong(3, now);
+        ps.addBatch();
+      }
+      return ps.executeBatch();
+    });
+    QueueSignal.global().signal();
+  }
+
+  private void report(String what) {
+    double secs = Math.max(1e-3, (System.nanoTime() - startedNanos) / 1e9);
+    System.out.printf("Active crawl %s: walk %,d files (%,.0f/s, stalled %.0f%%), queue %d/%d batches (max %d), "
+            + "write %,d rows (%,.0f/s, busy %.0f%%, idle %.0f%%)%n",
+        what, walked.sum(), walked.sum() / secs, 100 * walkStall(secs), q.size(), queueBatches, maxDepth,
+        written.sum(), written.sum() / secs, 100 * writeNanos.sum() / 1e9 / secs, 100 * writeIdle(secs));
+  }
+
+  // Share of walker time spent blocked on a full queue
+  private double walkStall(double secs) {
+    return Math.min(1, walkStallNanos.sum() / 1e9 / (secs * threads));
+  }
+
+  // Share of writer time spent waiting on an empty queue
+  private double writeIdle(double secs) {
+    return Math.min(1, writeIdleNanos.sum() / 1e9 / secs);
+  }
+
+  private String verdict() {
+    double secs = Math.max(1e-3, (System.nanoTime() - startedNanos) / 1e9);
+    double stall = walkStall(secs), idle = writeIdle(secs);
+    if (handed.sum() == 0) return "Active crawl: nothing to write; bound by the walk (disk).";
+    if (stall > 0.25 && stall > idle) return "Active crawl: bound by SQLite (walkers waited on the writer).";
+    if (idle > 0.25) return "Active crawl: bound by the walk (disk); the writer waited for paths.";
+    return "Active crawl: balanced; neither stage waited much on the other.";
+  }
+
+  // Paths packed into one char[] with end offsets; filled by one thread, then read by the writer
+  static final class PathBatch {
+    private final int capacity;
+    private char[] chars;
+    private final int[] ends;
+    private int count;
+
+    PathBatch(int capacity) {
+      this.capacity = capacity;
+      this.chars = new char[capacity * 64];
+      this.ends = new int[capacity];
+    }
+
+    void add(String path) {
+      int start = count == 0 ? 0 : ends[count - 1];
+      int end = start + path.length();
+      if (end > chars.length) chars = Arrays.copyOf(chars, Math.max(end, chars.length * 2));
+      path.getChars(0, path.length(), chars, start);
+      ends[count++] = end;
+    }
+
+    String path(int i) {
+      int start = i == 0 ? 0 : ends[i - 1];
+      return new String(chars, start, ends[i] - start);
+    }
+
+    int size() {
+      return count;
+    }
+
+    boolean full() {
+      return count == capacity;
+    }
+  }
 }
@@ -0,0 +1,289 @@
+package com.aialyzer.indexer;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.atomic.LongAdder;
+
+// First crawl of an empty database. files rows are written straight from the walk's
+// attributes, with no scan_queue hop and no upserts, while the secondary indexes are dropped
+// and the writer runs without fsync. Once the walk is done the indexes are built in one pass
+// each, and every loaded file is queued at idle priority so the worker fills in hashes, sniffed
+// types and image metadata later.
+// Resumable: the walk is split into units (a root's own files, and each of its
+// subdirectories) and a unit is marked done in bulk_state in the transaction that writes its
+// last rows. After a crash the database is checked, done units are skipped, and a unit cut
+// short is walked again with 'insert or ignore'.
+// Links are followed, as in every other walker, so the load sees the same tree later crawls do.
+public final class BulkLoader {
+  private static final int BATCH = 20_000;
+  private static final int ENQUEUE_CHUNK = 200_000;   // files ids per follow-up transaction
+  private static final long PROGRESS_EVERY_NANOS = 5_000_000_000L;
+  private static final String LOAD = "*";
+
+  private static final String INSERT_FILE_SQL =
+    "insert or ignore into files(dir_id,name,size_bytes,mtime_unix,ctime_unix,last_scanned_unix,kind,ext,file_key) " +
+    "values (?,?,?,?,?,?,?,?,?)";
+
+  private static final String ENQUEUE_LOADED_SQL =
+    "insert or ignore into scan_queue(path,kind,not_before_unix,attempts,priority) " +
+    "select d.path||f.name,'file',?,0,? from files f join dirs d on d.id=f.dir_id " +
+    "where f.id>? and f.id<=? and f.quick_hash is null and f.kind is not 'missing'";
+
+  private record Row(String path, long size, long mtime, long ctime, String fileKey) {}
+
+  private final DatabasePool db;
+  private final int threads;
+  private final long now = Instant.now().getEpochSecond();
+  private final Object bufferLock = new Object();
+  private List<Row> buffer = new ArrayList<>(BATCH);
+  private final LongAdder loaded = new LongAdder();
+  private final Set<String> rootUnits = new HashSet<>();
+  private long startedNanos;
+  private volatile long lastReportNanos;
+
+  public BulkLoader(DatabasePool db, int threads) {
+    this.db = db;
+    this.threads = Math.max(1, threads);
+  }
+
+  // True for a database with no files yet, or one whose bulk load did not finish
+  public static boolean wanted(DatabasePool db) throws SQLException {
+    return db.read(cx -> {
+      try (Statement st = cx.createStatement()) {
+        if (DatabaseManager.bulkLoadPending(st)) return true;
+        try (ResultSet rs = st.executeQuery(
+               "select not exists (select 1 from files) and not exists (select 1 from bulk_state)")) {
+          return rs.next() && rs.getBoolean(1);
+        }
+      }
+    });
+  }
+
+  // Loads the roots; returns the number of files written by this run
+  public long load(List<Path> roots) throws Exception {
+    startedNanos = lastReportNanos = System.nanoTime();
+    boolean resuming = db.read(cx -> {
+      try (Statement st = cx.createStatement()) {
+        return DatabaseManager.bulkLoadPending(st);
+      }
+    });
+    if (resuming) check();
+
+    List<String> units = new ArrayList<>();
+    for (Path root : roots) {
+      if (!Files.isDirectory(root)) continue;
+      rootUnits.add(PathDictionary.dirKey(root));
+      units.addAll(units(root));
+    }
+    db.write(cx -> {
+      try (Statement st = cx.createStatement()) {
+        for (String ix : DatabaseManager.SECONDARY_INDEXES) st.executeUpdate("drop index if exists " + ix);
+      }
+      PreparedStatement ps = StatementCache.of(cx).get("insert or ignore into bulk_state(unit) values (?)");
+      ps.setString(1, LOAD);
+      ps.addBatch();
+      for (String u : units) {
+        ps.setString(1, u);
+        ps.addBatch();
+      }
+      return ps.executeBatch();
+    });
+    db.configure(DatabaseManager.BULK_PRAGMAS);
+    try {
+      for (String unit : units) {
+        if (!isDone(unit)) loadUnit(unit);
+      }
+      report("walk done");
+      finish();
+    } finally {
+      db.configure(DatabaseManager.AFTER_BULK_PRAGMAS);
+    }
+    report("done");
+    return loaded.sum();
+  }
+
+  // The root's own files (unit = the root's directory key) and each wanted subdirectory
+  private static List<String> units(Path root) {
+    List<String> units = new ArrayList<>();
+    units.add(PathDictionary.dirKey(root));
+    List<String> dirs = new ArrayList<>();
+    try (DirectoryStream<Path> ds = Files.newDirectoryStream(root)) {
+      for (Path p : ds) {
+        if (Files.isDirectory(p) && PathFilter.active().acceptDir(p)) dirs.add(PathDictionary.dirKey(p));
+      }
+    } catch (IOException | RuntimeException ignore) {
+    }
+    dirs.sort(null);
+    units.addAll(dirs);
+    return units;
+  }
+
+  private boolean isDone(String unit) throws SQLException {
+    return db.read(cx -> {
+      PreparedStatement ps = StatementCache.of(cx).get("select done_unix is not null from bulk_state where unit=?");
+      ps.setString(1, unit);
+      try (ResultSet rs = ps.executeQuery()) {
+        return rs.next() && rs.getBoolean(1);
+      }
+    });
+  }
+
+  private void loadUnit(String unit) throws Exception {
+    Path dir = Path.of(unit);
+    if (rootUnits.contains(unit)) {
+      // files directly in the root; its subdirectories are units of their own
+      List<Path> files = new ArrayList<>();
+      try (DirectoryStream<Path> ds = Files.newDirectoryStream(dir)) {
+        for (Path p : ds) files.add(p);
+      } catch (IOException | RuntimeException ignore) {
+      }
+      for (Path p : files) {
+        BasicFileAttributes a;
+        try {
+          a = Files.readAttributes(p, BasicFileAttributes.class);
+        } catch (IOException | RuntimeException e) {
+          continue;
+        }
+        if (a.isRegularFile() && PathFilter.active().acceptFile(p)) add(p, a);
+      }
+    } else {
+      new ParallelFileWalker(threads).walk(List.of(dir), this::add);
+    }
+    List<Row> rest;
+    synchronized (bufferLock) {
+      rest = buffer;
+      buffer = new ArrayList<>(BATCH);
+    }
+    db.write(cx -> {
+      insert(rest);
+      PreparedStatement ps = StatementCache.of(cx).get("update bulk_state set done_unix=? where unit=?");
+      ps.setLong(1, now);
+      ps.setString(2, unit);
+      return ps.executeUpdate();
+    });
+  }
+
+  // Walker callback, called concurrently; the thread that fills a batch writes it
+  private void add(Path file, BasicFileAttributes a) throws IOException {
+    Object key = a.fileKey();
+    Row row = new Row(file.toString(), a.size(), a.lastModifiedTime().toMillis() / 1000L,
+        a.creationTime() != null ? a.creationTime().toMillis() / 1000L : 0L, key == null ? null : key.toString());
+    List<Row> full = null;
+    synchronized (bufferLock) {
+      buffer.add(row);
+      if (buffer.size() >= BATCH) {
+        full = buffer;
+        buffer = new ArrayList<>(BATCH);
+      }
+    }
+    if (full == null) return;
+    List<Row> batch = full;
+    try {
+      db.write(cx -> insert(batch));
+    } catch (SQLException e) {
+      throw new IOException("bulk insert failed", e);
+    }
+    long t = System.nanoTime();
+    if (t - lastReportNanos >= PROGRESS_EVERY_NANOS) {
+      lastReportNanos = t;
+      report("progress");
+    }
+  }
+
+  // Runs inside db.write
+  private int insert(List<Row> rows) throws SQLException {
+    if (rows.isEmpty()) return 0;
+    PathDictionary dirs = db.writerPaths();
+    PreparedStatement ps = db.writerStatements().get(INSERT_FILE_SQL);
+    for (Row r : rows) {
+      String name = PathDictionary.nameOf(r.path());
+      ps.setLong(1, dirs.intern(PathDictionary.dirOf(r.path())));
+      ps.setString(2, name);
+      ps.setLong(3, r.size());
+      ps.setLong(4, r.mtime());
+      ps.setLong(5, r.ctime());
+      ps.setLong(6, now);
+      ps.setString(7, FileType.mimeByExtension(name));
+      ps.setString(8, ext(name));
+      ps.setString(9, r.fileKey());
+      ps.addBatch();
+    }
+    ps.executeBatch();
+    loaded.add(rows.size());
+    return rows.size();
+  }
+
+  // Builds the indexes, queues the follow-up work in chunks (a chunk that was already queued
+  // before a crash is skipped by 'or ignore'), then marks the load done
+  private void finish() throws SQLException {
+    System.out.println("Bulk load: building indexes...");
+    db.write(cx -> {
+      try (Statement st = cx.createStatement()) {
+        DatabaseManager.createSecondaryIndexes(st);
+      }
+      return null;
+    });
+
+    long maxId = db.read(cx -> {
+      try (Statement st = cx.createStatement(); ResultSet rs = st.executeQuery("select coalesce(max(id),0) from files")) {
+        return rs.next() ? rs.getLong(1) : 0L;
+      }
+    });
+    for (long from = 0; from < maxId; from += ENQUEUE_CHUNK) {
+      long lo = from;
+      db.write(cx -> {
+        PreparedStatement ps = StatementCache.of(cx).get(ENQUEUE_LOADED_SQL);
+        ps.setLong(1, now);
+        ps.setInt(2, DatabaseManager.PRIORITY_IDLE);
+        ps.setLong(3, lo);
+        ps.setLong(4, lo + ENQUEUE_CHUNK);
+        return ps.executeUpdate();
+      });
+    }
+    db.write(cx -> {
+      PreparedStatement ps = StatementCache.of(cx).get("update bulk_state set done_unix=? where unit=?");
+      ps.setLong(1, now);
+      ps.setString(2, LOAD);
+      return ps.executeUpdate();
+    });
+    QueueSignal.global().signal();
+  }
+
+  // An OS crash while fsync was off can leave a damaged file; nothing else is in it yet
+  private void check() throws SQLException {
+    System.out.println("Bulk load: resuming, checking the database...");
+    String result = db.read(cx -> {
+      try (Statement st = cx.createStatement(); ResultSet rs = st.executeQuery("PRAGMA quick_check")) {
+        return rs.next() ? rs.getString(1) : "no result";
+      }
+    });
+    if (!"ok".equals(result)) {
+      throw new SQLException("database damaged during an interrupted bulk load (" + result
+          + "); delete it and start again");
+    }
+  }
+
+  private void report(String what) {
+    double secs = Math.max(1e-3, (System.nanoTime() - startedNanos) / 1e9);
+    long n = loaded.sum();
+    System.out.printf("Bulk load %s: %,d files, %,.0f files/sec%n", what, n, n / secs);
+  }
+
+  private static String ext(String name) {
+    int dot = name.lastIndexOf('.');
+    return (dot >= 0 && dot < name.length() - 1) ? name.substring(dot + 1).toLowerCase(Locale.ROOT) : "";
+  }
+}
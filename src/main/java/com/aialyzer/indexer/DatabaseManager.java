@@ -3,10 +3,103 @@ package com.aialyzer.indexer;
 import java.io.IOException;
 import java.nio.file.*;
 import java.sql.*;
+import java.util.ArrayList;
+import java.util.List;
 
 public final class DatabaseManager {
   private DatabaseManager() {}
 
+  // scan_queue.priority: lower is claimed first within a kind
+  public static final int PRIORITY_INTERACTIVE = 0;   // watcher events
+  public static final int PRIORITY_DEFAULT = 5;       // crawls and follow-up work
+  public static final int PRIORITY_IDLE = 9;
+
+  // (path, kind, not_before_unix); re-enqueueing a pending task only moves its due time, and
+  // never earlier than a retry backoff. Paths in scan_dead are not queued again by crawls.
+  // Both enqueues drop a worker's lease on the row: the change may have come after the worker
+  // read the file, so its completion must miss the delete and the row be claimed again.
+  public static final String ENQUEUE_SQL =
+    "insert into scan_queue(path,kind,not_before_unix,attempts) select ?1,?2,?3,0 " +
+    "where not exists (select 1 from scan_dead d where d.path=?1 and d.kind=?2) " +
+    "on conflict(path,kind) do update set not_before_unix=case when scan_queue.attempts>0 " +
+    "  then max(scan_queue.not_before_unix, excluded.not_before_unix) else excluded.not_before_unix end, " +
+    "  lease_owner=null, lease_until_unix=null";
+
+  // (path, kind, not_before_unix, priority); a fresh change: raises the priority and clears
+  // any backoff. Callers also run REVIVE_SQL so a dead-lettered path gets another chance.
+  public static final String ENQUEUE_PRIORITY_SQL =
+    "insert into scan_queue(path,kind,not_before_unix,attempts,priority) values (?,?,?,0,?) " +
+    "on conflict(path,kind) do update set not_before_unix=excluded.not_before_unix, " +
+    "  priority=min(scan_queue.priority, excluded.priority), attempts=0, last_error=null, " +
+    "  lease_owner=null, lease_until_unix=null";
+
+  // (path, kind)
+  public static final String REVIVE_SQL = "delete from scan_dead where path=? and kind=?";
+
+  // (now, dir key, name); keeps size, mtime, hashes and file_key so a later rename can be
+  // matched to the row, and remembers the kind so the move can restore it
+  public static final String MARK_MISSING_SQL =
+    "update files set prior_kind=kind, kind='missing', last_scanned_unix=? " +
+    "where dir_id=(select id from dirs where path=?) and name=? and kind is not 'missing'";
+
+  // Per-connection settings for the pool. The writer gets the larger page cache since it also
+  // does the index lookups behind upserts; WAL growth is capped between checkpoints.
+  private static final String[] WRITER_PRAGMAS = {
+    "PRAGMA cache_size=-65536",            // KiB
+    "PRAGMA temp_store=MEMORY",
+    "PRAGMA mmap_size=268435456",
+    "PRAGMA wal_autocheckpoint=1000",
+    "PRAGMA journal_size_limit=67108864",
+  };
+  private static final String[] READER_PRAGMAS = {
+    "PRAGMA query_only=ON",
+    "PRAGMA busy_timeout=5000",
+    "PRAGMA cache_size=-16384",
+    "PRAGMA temp_store=MEMORY",
+    "PRAGMA mmap_size=268435456",
+  };
+
+  // Writer settings while BulkLoader runs: no fsync, rare checkpoints, a large cache. An OS
+  // crash can then damage the file; the loader checks it before resuming.
+  static final String[] BULK_PRAGMAS = {
+    "PRAGMA synchronous=OFF",
+    "PRAGMA wal_autocheckpoint=20000",
+    "PRAGMA cache_size=-262144",
+  };
+  static final String[] AFTER_BULK_PRAGMAS = {
+    "PRAGMA synchronous=NORMAL",
+    "PRAGMA wal_autocheckpoint=1000",
+    "PRAGMA cache_size=-65536",
+    "PRAGMA wal_checkpoint(TRUNCATE)",
+  };
+
+  // One writer (which also creates the schema) and 'readers' read-only connections
+  public static DatabasePool openPool(Path dbFile, int readers) throws SQLException, IOException {
+    Connection writer = open(dbFile);
+    List<Connection> opened = new ArrayList<>();
+    try {
+      apply(writer, WRITER_PRAGMAS);
+      for (int i = 0; i < Math.max(1, readers); i++) {
+        Connection r = DriverManager.getConnection("jdbc:sqlite:" + dbFile.toAbsolutePath());
+        opened.add(r);
+        apply(r, READER_PRAGMAS);
+      }
+    } catch (SQLException e) {
+      for (Connection c : opened) {
+        try { c.close(); } catch (SQLException ignore) {}
+      }
+      writer.close();
+      throw e;
+    }
+    return new DatabasePool(writer, opened);
+  }
+
+  private static void apply(Connection cx, String[] pragmas) throws SQLException {
+    try (Statement s = cx.createStatement()) {
+      for (String p : pragmas) s.execute(p);
+    }
+  }
+
   public static Connection open(Path dbFile) throws SQLException, IOException {
     Path dir = dbFile.toAbsolutePath().getParent();
     if (dir != null) Files.createDirectories(dir);
@@ -30,11 +123,20 @@ public final class DatabaseManager {
       st.execute("PRAGMA journal_mode=WAL");
       st.execute("PRAGMA synchronous=NORMAL");
 
+      // interned directories, keyed by path with a trailing separator (see PathDictionary)
+      st.executeUpdate("""
+        create table if not exists dirs (
+          id                integer primary key,
+          path              text unique not null
+        );""");
+
+      if (hasColumn(st, "files", "path")) migrateToDirIds(st);
+
       st.executeUpdate("""
         create table if not exists files (
           id                integer primary key,
-          path              text unique not null,
-          parent_path       text not null,
+          dir_id            integer not null references dirs(id),
+          name              text not null,
           size_bytes        integer not null,
           mtime_unix        integer not null,
           ctime_unix        integer,
@@ -45,16 +147,15 @@ public final class DatabaseManager {
           type_label_confidence real,
           type_label_source text,
           type_label_updated_unix integer,
-          ext               text
+          ext               text,
+          ai_safety         text,
+          ai_response       text,
+          quick_hash        integer,           -- XXH64 of head and tail blocks; with size_bytes it keys possible duplicates
+          file_key          text,              -- BasicFileAttributes.fileKey() (device/inode), used to recognise renames
+          prior_kind        text,              -- kind before the row was marked missing
+          unique(dir_id, name)
         );""");
 
-        try { st.executeUpdate("ALTER TABLE files ADD COLUMN ai_safety TEXT"); }
-        catch (SQLException ignore) { /* already exists */ }
-
-        try { st.executeUpdate("ALTER TABLE files ADD COLUMN ai_response TEXT"); }
-        catch (SQLException ignore) { /* already exists */ }
-
-
       st.executeUpdate("""
         create table if not exists scan_queue (
           id               integer primary key,
@@ -65,9 +166,42 @@ public final class DatabaseManager {
           unique(path, kind)
         );""");
 
+        // claim leases so several worker processes can share one queue
+        try { st.executeUpdate("ALTER TABLE scan_queue ADD COLUMN lease_owner TEXT"); }
+        catch (SQLException ignore) { /* already exists */ }
+
+        try { st.executeUpdate("ALTER TABLE scan_queue ADD COLUMN lease_until_unix INTEGER"); }
+        catch (SQLException ignore) { /* already exists */ }
+
+        try { st.executeUpdate("ALTER TABLE scan_queue ADD COLUMN priority INTEGER NOT NULL DEFAULT " + PRIORITY_DEFAULT); }
+        catch (SQLException ignore) { /* already exists */ }
+
+        try { st.executeUpdate("ALTER TABLE scan_queue ADD COLUMN last_error TEXT"); }
+        catch (SQLException ignore) { /* already exists */ }
+
+      // tasks that failed too often; kept for inspection, skipped by crawls
+      st.executeUpdate("""
+        create table if not exists scan_dead (
+          path             text not null,
+          kind             text not null,
+          attempts         integer not null,
+          last_error       text,
+          failed_unix      integer not null,
+          primary key(path, kind)
+        );""");
+
+      // passive trickle position per root, so restarts resume the sweep
+      st.executeUpdate("""
+        create table if not exists crawl_cursor (
+          root              text primary key,
+          cursor_path       text,
+          pass_started_unix integer not null,
+          passes            integer not null default 0
+        );""");
+
       st.executeUpdate("""
         create table if not exists image_meta (
-          path            text primary key references files(path) on delete cascade,
+          file_id         integer primary key references files(id) on delete cascade,
           width           integer,
           height          integer,
           exif_taken_unix integer,
@@ -78,29 +212,191 @@ public final class DatabaseManager {
       st.executeUpdate("""
         create table if not exists label_history (
           id               integer primary key,
-          path             text not null,
+          file_id          integer not null references files(id) on delete cascade,
           label            text,
           confidence       real,
           source           text,
-          created_unix     integer not null,
-          foreign key(path) references files(path) on delete cascade
+          created_unix     integer not null
         );""");
 
       st.executeUpdate("""
-        create index if not exists ix_files_kind_parent_path_path
-        on files(kind, parent_path, path);""");
+        create index if not exists ix_label_history_file
+        on label_history(file_id);""");
 
+      // full paths for ad-hoc queries and tools
       st.executeUpdate("""
-        create index if not exists ix_files_ext_parent_path_path
-        on files(ext, parent_path, path);""");
+        create view if not exists file_paths as
+        select d.path || f.name as path, f.*
+        from files f join dirs d on d.id = f.dir_id;""");
 
+      // first crawl of an empty database, see BulkLoader; one row per unit of work plus '*'
+      // for the whole load, done once the indexes are built and follow-up work is queued
       st.executeUpdate("""
-        create index if not exists ix_queue_due
-        on scan_queue(not_before_unix, kind, id);""");
+        create table if not exists bulk_state (
+          unit             text primary key,
+          done_unix        integer
+        );""");
+
+      st.executeUpdate("drop index if exists ix_queue_due");
+
+      // an unfinished bulk load builds them when it completes
+      if (!bulkLoadPending(st)) createSecondaryIndexes(st);
+    }
+  }
+
+  // Indexes that only serve lookups; dropped during a bulk load and built once at the end
+  static final String[] SECONDARY_INDEXES = {
+    "ix_files_kind_dir", "ix_files_ext_dir", "ix_files_size_quick", "ix_files_missing_size_mtime",
+    "ix_queue_sched", "ix_queue_lease", "ix_queue_next_due", "ix_queue_lease_until",
+  };
+
+  static void createSecondaryIndexes(Statement st) throws SQLException {
+    st.executeUpdate("""
+      create index if not exists ix_files_kind_dir
+      on files(kind, dir_id);""");
+
+    st.executeUpdate("""
+      create index if not exists ix_files_ext_dir
+      on files(ext, dir_id);""");
+
+    st.executeUpdate("""
+      create index if not exists ix_files_size_quick
+      on files(size_bytes, quick_hash);""");
+
+    st.executeUpdate("""
+      create index if not exists ix_queue_sched
+      on scan_queue(kind, priority, not_before_unix, id);""");
+
+    st.executeUpdate("""
+      create index if not exists ix_queue_lease
+      on scan_queue(lease_owner);""");
+
+    // when the next row becomes claimable: unleased rows by due time, leased ones by expiry
+    st.executeUpdate("""
+      create index if not exists ix_queue_next_due
+      on scan_queue(not_before_unix) where lease_until_unix is null;""");
+
+    st.executeUpdate("""
+      create index if not exists ix_queue_lease_until
+      on scan_queue(lease_until_unix) where lease_until_unix is not null;""");
+
+    st.executeUpdate("""
+      create index if not exists ix_files_missing_size_mtime
+      on files(size_bytes, mtime_unix) where kind='missing';""");
+  }
+
+  static boolean bulkLoadPending(Statement st) throws SQLException {
+    try (ResultSet rs = st.executeQuery("select 1 from bulk_state where unit='*' and done_unix is null")) {
+      return rs.next();
+    }
+  }
+
+  private static boolean hasColumn(Statement st, String table, String column) throws SQLException {
+    try (ResultSet rs = st.executeQuery("select 1 from pragma_table_info('" + table + "') where name='" + column + "'")) {
+      return rs.next();
+    }
+  }
+
+  // Databases from before the directory table keyed files, image_meta and label_history on the
+  // full path text. Rebuilds the three tables on dirs/file ids in one transaction (file ids are
+  // kept), then vacuums to hand back the space the path columns and their indexes used.
+  private static void migrateToDirIds(Statement st) throws SQLException {
+    System.out.println("Migrating files to the directory table...");
+    String sep = String.valueOf(java.io.File.separatorChar);
+    String dirKey = "(case when f.parent_path='' or substr(f.parent_path,-1)='" + sep + "' " +
+                    "then f.parent_path else f.parent_path||'" + sep + "' end)";
+
+    // columns added to the old table over time, so the copy below can name them all
+    for (String col : new String[] {
+        "ai_safety TEXT", "ai_response TEXT", "quick_hash INTEGER", "file_key TEXT", "prior_kind TEXT" }) {
+      try { st.executeUpdate("ALTER TABLE files ADD COLUMN " + col); }
+      catch (SQLException ignore) { /* already exists */ }
+    }
 
+    st.execute("PRAGMA foreign_keys=OFF");
+    st.execute("begin immediate");
+    try {
+      st.executeUpdate("insert or ignore into dirs(path) select distinct " + dirKey + " from files f");
       st.executeUpdate("""
-        create index if not exists ix_files_parent
-        on files(parent_path);""");
+        create table files_new (
+          id                integer primary key,
+          dir_id            integer not null references dirs(id),
+          name              text not null,
+          size_bytes        integer not null,
+          mtime_unix        integer not null,
+          ctime_unix        integer,
+          last_scanned_unix integer not null,
+          content_hash      text,
+          kind              text,
+          type_label        text,
+          type_label_confidence real,
+          type_label_source text,
+          type_label_updated_unix integer,
+          ext               text,
+          ai_safety         text,
+          ai_response       text,
+          quick_hash        integer,
+          file_key          text,
+          prior_kind        text,
+          unique(dir_id, name)
+        );""");
+      st.executeUpdate(
+        "insert or ignore into files_new(id,dir_id,name,size_bytes,mtime_unix,ctime_unix,last_scanned_unix," +
+        "  content_hash,kind,type_label,type_label_confidence,type_label_source,type_label_updated_unix,ext," +
+        "  ai_safety,ai_response,quick_hash,file_key,prior_kind) " +
+        "select f.id,d.id,substr(f.path,length(d.path)+1),f.size_bytes,f.mtime_unix,f.ctime_unix,f.last_scanned_unix," +
+        "  f.content_hash,f.kind,f.type_label,f.type_label_confidence,f.type_label_source,f.type_label_updated_unix,f.ext," +
+        "  f.ai_safety,f.ai_response,f.quick_hash,f.file_key,f.prior_kind " +
+        "from files f join dirs d on d.path=" + dirKey);
+
+      boolean images = hasColumn(st, "image_meta", "path");
+      if (images) {
+        st.executeUpdate("""
+          create table image_meta_new (
+            file_id         integer primary key references files(id) on delete cascade,
+            width           integer,
+            height          integer,
+            exif_taken_unix integer,
+            camera_make     text,
+            camera_model    text
+          );""");
+        st.executeUpdate(
+          "insert or ignore into image_meta_new(file_id,width,height,exif_taken_unix,camera_make,camera_model) " +
+          "select f.id,m.width,m.height,m.exif_taken_unix,m.camera_make,m.camera_model " +
+          "from image_meta m join files f on f.path=m.path");
+        st.executeUpdate("drop table image_meta");
+      }
+      boolean labels = hasColumn(st, "label_history", "path");
+      if (labels) {
+        st.executeUpdate("""
+          create table label_history_new (
+            id               integer primary key,
+            file_id          integer not null references files(id) on delete cascade,
+            label            text,
+            confidence       real,
+            source           text,
+            created_unix     integer not null
+          );""");
+        st.executeUpdate(
+          "insert into label_history_new(id,file_id,label,confidence,source,created_unix) " +
+          "select l.id,f.id,l.label,l.confidence,l.source,l.created_unix " +
+          "from label_history l join files f on f.path=l.path");
+        st.executeUpdate("drop table label_history");
+      }
+
+      st.executeUpdate("drop view if exists file_paths");
+      st.executeUpdate("drop table files");
+      st.executeUpdate("alter table files_new rename to files");
+      if (images) st.executeUpdate("alter table image_meta_new rename to image_meta");
+      if (labels) st.executeUpdate("alter table label_history_new rename to label_history");
+      st.execute("commit");
+    } catch (SQLException e) {
+      try { st.execute("rollback"); } catch (SQLException ignore) {}
+      throw e;
+    } finally {
+      st.execute("PRAGMA foreign_keys=ON");
     }
+    st.execute("VACUUM");
+    System.out.println("Migration complete.");
   }
 }
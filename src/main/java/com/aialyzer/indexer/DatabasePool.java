@@ -0,0 +1,126 @@
+package com.aialyzer.indexer;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.locks.ReentrantLock;
+
+// Connections to one database file: a single writer behind a lock and a few query_only readers.
+// WAL lets the readers run while the writer has a transaction open, so a query never waits for
+// a write and, with one writer per process, our own connections never fight over the write
+// lock (busy_timeout still covers other processes).
+// write() runs its work in a BEGIN IMMEDIATE transaction: the lock is taken up front instead of
+// on the first write, so a transaction that reads first cannot fail half-way with SQLITE_BUSY.
+// Calls nest: a write() inside another joins the outer transaction. Readers are in autocommit,
+// so every statement sees the latest commit; a read() inside a write() does not see the
+// writer's uncommitted rows.
+public final class DatabasePool implements AutoCloseable {
+  @FunctionalInterface
+  public interface Work<T> {
+    T run(Connection cx) throws SQLException;
+  }
+
+  private final Connection writer;
+  private final ReentrantLock writeLock = new ReentrantLock();
+  private final List<Connection> readers;
+  private final BlockingQueue<Connection> idleReaders;
+
+  DatabasePool(Connection writer, List<Connection> readers) {
+    this.writer = writer;
+    this.readers = List.copyOf(readers);
+    this.idleReaders = new ArrayBlockingQueue<>(Math.max(1, readers.size()), false, readers);
+  }
+
+  // Runs work in one transaction on the writer; commits on return, rolls back if it throws
+  public <T> T write(Work<T> work) throws SQLException {
+    writeLock.lock();
+    try {
+      if (writeLock.getHoldCount() > 1) return work.run(writer);
+      exec("begin immediate");
+      boolean committed = false;
+      try {
+        T result = work.run(writer);
+        exec("commit");
+        committed = true;
+        return result;
+      } finally {
+        if (!committed) {
+          try { exec("rollback"); } catch (SQLException ignore) {}
+        }
+        PathDictionary.transactionEnded(writer, committed);
+      }
+    } finally {
+      writeLock.unlock();
+    }
+  }
+
+  // Runs statements on the writer outside any transaction (pragmas that cannot change inside
+  // one, checkpoints)
+  public void configure(String... statements) throws SQLException {
+    writeLock.lock();
+    try {
+      if (writeLock.getHoldCount() > 1) throw new SQLException("configure() inside write()");
+      for (String sql : statements) exec(sql);
+    } finally {
+      writeLock.unlock();
+    }
+  }
+
+  // Runs work on a reader, waiting if all are in use. Do not nest reads: the inner one could
+  // wait for a reader the outer one holds.
+  public <T> T read(Work<T> work) throws SQLException {
+    Connection cx;
+    try {
+      cx = idleReaders.take();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new SQLException("interrupted waiting for a reader", e);
+    }
+    try {
+      return work.run(cx);
+    } finally {
+      idleReaders.add(cx);
+    }
+  }
+
+  // Cached statements of the writer connection, for components that keep a reference; they
+  // must only be used inside write()
+  public StatementCache writerStatements() {
+    return StatementCache.of(writer);
+  }
+
+  // Directory dictionary of the writer connection; same rule as writerStatements()
+  public PathDictionary writerPaths() {
+    return PathDictionary.of(writer);
+  }
+
+  public int readers() {
+    return readers.size();
+  }
+
+  private void exec(String sql) throws SQLException {
+    try (Statement st = writer.createStatement()) {
+      st.execute(sql);
+    }
+  }
+
+  @Override public void close() throws SQLException {
+    SQLException first = null;
+    List<Connection> all = new ArrayList<>(readers);
+    all.add(writer);
+    for (Connection cx : all) {
+      PathDictionary.closed(cx);
+      StatementCache.closed(cx);
+      try {
+        cx.close();
+      } catch (SQLException e) {
+        if (first == null) first = e;
+      }
+    }
+    if (first != null) throw first;
+  }
+}
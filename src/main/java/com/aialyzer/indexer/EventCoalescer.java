@@ -0,0 +1,100 @@
+package com.aialyzer.indexer;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+// Debounce stage between the WatchService and the queue. The watcher thread records each event
+// against its path; repeats only bump the entry's timestamp and flags (no lock, no allocation).
+// The flushing thread takes paths that have been quiet for the settle window, or that have been
+// pending for maxDelay while still being written, so a file being copied costs one queue write.
+final class EventCoalescer {
+  static final int CREATED = 1;
+  static final int MODIFIED = 2;
+  static final int DELETED = 4;
+  static final int RESCAN = 8;      // directory whose events overflowed
+
+  record Settled(Path path, int flags) {}
+
+  private static final class Pending {
+    final long firstNanos;
+    volatile long lastNanos;
+    final AtomicInteger flags;
+
+    Pending(long now, int flags) {
+      this.firstNanos = now;
+      this.lastNanos = now;
+      this.flags = new AtomicInteger(flags);
+    }
+  }
+
+  private final ConcurrentHashMap<Path, Pending> pending = new ConcurrentHashMap<>();
+  private final long settleNanos;
+  private final long maxDelayNanos;
+  private final LongAdder eventsIn = new LongAdder();
+  private final LongAdder pathsOut = new LongAdder();
+
+  EventCoalescer(long settleMillis, long maxDelayMillis) {
+    this.settleNanos = settleMillis * 1_000_000L;
+    this.maxDelayNanos = Math.max(settleMillis, maxDelayMillis) * 1_000_000L;
+  }
+
+  void offer(Path path, int flag, long nowNanos) {
+    eventsIn.increment();
+    record(path, flag, nowNanos);
+  }
+
+  // Puts drained paths back, e.g. when writing them failed; they settle again from nowNanos
+  void retry(List<Settled> settled, long nowNanos) {
+    for (Settled s : settled) record(s.path(), s.flags(), nowNanos);
+    pathsOut.add(-settled.size());
+  }
+
+  private void record(Path path, int flag, long nowNanos) {
+    while (true) {
+      Pending p = pending.get(path);
+      if (p == null) {
+        p = pending.putIfAbsent(path, new Pending(nowNanos, flag));
+        if (p == null) return;
+      }
+      p.lastNanos = nowNanos;
+      int f;
+      while (((f = p.flags.get()) & flag) != flag && !p.flags.compareAndSet(f, f | flag)) {
+        // retry until the bits are set
+      }
+      if (pending.get(path) == p) return;   // otherwise it was drained meanwhile; record it again
+    }
+  }
+
+  // Removes and returns up to max paths that are ready. An event that races with the removal
+  // starts a fresh entry, so it is flushed on a later call rather than lost.
+  List<Settled> drainSettled(long nowNanos, int max) {
+    List<Settled> out = new ArrayList<>();
+    Iterator<Map.Entry<Path, Pending>> it = pending.entrySet().iterator();
+    while (it.hasNext() && out.size() < max) {
+      Map.Entry<Path, Pending> e = it.next();
+      Pending p = e.getValue();
+      if (nowNanos - p.lastNanos < settleNanos && nowNanos - p.firstNanos < maxDelayNanos) continue;
+      if (pending.remove(e.getKey(), p)) out.add(new Settled(e.getKey(), p.flags.get()));
+    }
+    pathsOut.add(out.size());
+    return out;
+  }
+
+  int size() {
+    return pending.size();
+  }
+
+  long eventsIn() {
+    return eventsIn.sum();
+  }
+
+  long pathsOut() {
+    return pathsOut.sum();
+  }
+}
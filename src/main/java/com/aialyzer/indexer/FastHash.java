@@ -0,0 +1,127 @@
+package com.aialyzer.indexer;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+// XXH64, a fast non-cryptographic 64-bit hash. Used for cheap fingerprints, never for integrity.
+public final class FastHash {
+  private static final long P1 = 0x9E3779B185EBCA87L;
+  private static final long P2 = 0xC2B2AE3D27D4EB4FL;
+  private static final long P3 = 0x165667B19E3779F9L;
+  private static final long P4 = 0x85EBCA77C2B2AE63L;
+  private static final long P5 = 0x27D4EB2F165667C5L;
+
+  private FastHash() {}
+
+  // Hashes the bytes between position and limit; the buffer's position is not changed
+  public static long xxh64(ByteBuffer in, long seed) {
+    ByteBuffer b = in.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+    int p = b.position();
+    int end = b.limit();
+    int len = end - p;
+    long h;
+
+    if (len >= 32) {
+      long v1 = seed + P1 + P2, v2 = seed + P2, v3 = seed, v4 = seed - P1;
+      int last = end - 32;
+      do {
+        v1 = round(v1, b.getLong(p));
+        v2 = round(v2, b.getLong(p + 8));
+        v3 = round(v3, b.getLong(p + 16));
+        v4 = round(v4, b.getLong(p + 24));
+        p += 32;
+      } while (p <= last);
+      h = Long.rotateLeft(v1, 1) + Long.rotateLeft(v2, 7) + Long.rotateLeft(v3, 12) + Long.rotateLeft(v4, 18);
+      h = merge(h, v1);
+      h = merge(h, v2);
+      h = merge(h, v3);
+      h = merge(h, v4);
+    } else {
+      h = seed + P5;
+    }
+
+    h += len;
+    for (; p + 8 <= end; p += 8) {
+      h ^= round(0, b.getLong(p));
+      h = Long.rotateLeft(h, 27) * P1 + P4;
+    }
+    if (p + 4 <= end) {
+      h ^= (b.getInt(p) & 0xFFFFFFFFL) * P1;
+      h = Long.rotateLeft(h, 23) * P2 + P3;
+      p += 4;
+    }
+    for (; p < end; p++) {
+      h ^= (b.get(p) & 0xFFL) * P5;
+      h = Long.rotateLeft(h, 11) * P1;
+    }
+    return avalanche(h);
+  }
+
+  // Same value as xxh64 over the UTF-16LE bytes of s, without encoding it first
+  public static long xxh64(CharSequence s, long seed) {
+    int n = s.length();
+    int c = 0;
+    long h;
+
+    if (n >= 16) {
+      long v1 = seed + P1 + P2, v2 = seed + P2, v3 = seed, v4 = seed - P1;
+      int last = n - 16;
+      do {
+        v1 = round(v1, chars4(s, c));
+        v2 = round(v2, chars4(s, c + 4));
+        v3 = round(v3, chars4(s, c + 8));
+        v4 = round(v4, chars4(s, c + 12));
+        c += 16;
+      } while (c <= last);
+      h = Long.rotateLeft(v1, 1) + Long.rotateLeft(v2, 7) + Long.rotateLeft(v3, 12) + Long.rotateLeft(v4, 18);
+      h = merge(h, v1);
+      h = merge(h, v2);
+      h = merge(h, v3);
+      h = merge(h, v4);
+    } else {
+      h = seed + P5;
+    }
+
+    h += 2L * n;
+    for (; c + 4 <= n; c += 4) {
+      h ^= round(0, chars4(s, c));
+      h = Long.rotateLeft(h, 27) * P1 + P4;
+    }
+    if (c + 2 <= n) {
+      h ^= (s.charAt(c) | (long) s.charAt(c + 1) << 16) * P1;
+      h = Long.rotateLeft(h, 23) * P2 + P3;
+      c += 2;
+    }
+    if (c < n) {
+      char ch = s.charAt(c);
+      h ^= (ch & 0xFFL) * P5;
+      h = Long.rotateLeft(h, 11) * P1;
+      h ^= (ch >>> 8) * P5;
+      h = Long.rotateLeft(h, 11) * P1;
+    }
+    return avalanche(h);
+  }
+
+  private static long chars4(CharSequence s, int i) {
+    return s.charAt(i) | (long) s.charAt(i + 1) << 16 | (long) s.charAt(i + 2) << 32 | (long) s.charAt(i + 3) << 48;
+  }
+
+  private static long round(long acc, long input) {
+    acc += input * P2;
+    return Long.rotateLeft(acc, 31) * P1;
+  }
+
+  private static long merge(long acc, long v) {
+    acc ^= round(0, v);
+    return acc * P1 + P4;
+  }
+
+  private static long avalanche(long h) {
+    h ^= h >>> 33;
+    h *= P2;
+    h ^= h >>> 29;
+    h *= P3;
+    h ^= h >>> 32;
+    return h;
+  }
+}
@@ -0,0 +1,243 @@
+package com.aialyzer.indexer;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+// The one place file types are decided. Content first: magic signatures at the start of the
+// file, dispatched on the first byte. Then the extension, looked up in a precomputed table keyed
+// by the extension packed into a long. Neither path allocates, and neither asks the OS, so the
+// answer is the same on every machine.
+public final class FileType {
+  public static final String IMAGE = "image";
+  public static final String VIDEO = "video";
+  public static final String DOC = "doc";
+  public static final String OTHER = "other";
+
+  // magic at 'at', optionally followed by 'sub' at 'subAt'; generic containers (zip, OLE) defer
+  // to the extension when it names a type of that container
+  private record Sig(int at, byte[] magic, int subAt, byte[] sub, String mime, boolean generic) {}
+
+  private static final Sig[][] BY_FIRST_BYTE = new Sig[256][];
+
+  // ISO-BMFF 'ftyp' major brands, packed big-endian
+  private static final int[] BRANDS;
+  private static final String[] BRAND_MIMES;
+
+  // extension table: open addressing on the packed extension
+  private static final int EXT_SLOTS = 128;
+  private static final long[] EXT_KEYS = new long[EXT_SLOTS];
+  private static final String[] EXT_MIMES = new String[EXT_SLOTS];
+  private static final String[] EXT_KINDS = new String[EXT_SLOTS];
+
+  static {
+    sig(0, bytes(0xFF, 0xD8, 0xFF), "image/jpeg");
+    sig(0, bytes(0x89, 'P', 'N', 'G', 0x0D, 0x0A, 0x1A, 0x0A), "image/png");
+    sig(0, ascii("GIF87a"), "image/gif");
+    sig(0, ascii("GIF89a"), "image/gif");
+    add(new Sig(0, ascii("BM"), 6, bytes(0, 0, 0, 0), "image/bmp", false));   // reserved words are zero
+    sig(0, bytes('I', 'I', '*', 0), "image/tiff");
+    sig(0, bytes('M', 'M', 0, '*'), "image/tiff");
+    riff("WEBP", "image/webp");
+    riff("AVI ", "video/x-msvideo");
+    sig(0, bytes(0x1A, 0x45, 0xDF, 0xA3), "video/x-matroska");
+    sig(0, bytes(0x30, 0x26, 0xB2, 0x75, 0x8E, 0x66, 0xCF, 0x11), "video/x-ms-wmv");
+    sig(0, ascii("%PDF-"), "application/pdf");
+    generic(bytes('P', 'K', 3, 4), "application/zip");
+    generic(bytes(0xD0, 0xCF, 0x11, 0xE0, 0xA1, 0xB1, 0x1A, 0xE1), "application/x-ole-storage");
+
+    String[][] brands = {
+      {"heic", "image/heic"}, {"heix", "image/heic"}, {"mif1", "image/heic"}, {"msf1", "image/heic"},
+      {"avif", "image/avif"}, {"avis", "image/avif"},
+      {"qt  ", "video/quicktime"},
+      {"isom", "video/mp4"}, {"iso2", "video/mp4"}, {"mp41", "video/mp4"}, {"mp42", "video/mp4"},
+      {"avc1", "video/mp4"}, {"dash", "video/mp4"}, {"M4V ", "video/mp4"},
+    };
+    BRANDS = new int[brands.length];
+    BRAND_MIMES = new String[brands.length];
+    for (int i = 0; i < brands.length; i++) {
+      BRANDS[i] = ByteBuffer.wrap(ascii(brands[i][0])).getInt();
+      BRAND_MIMES[i] = brands[i][1];
+    }
+
+    ext(IMAGE, "image/jpeg", "jpg", "jpeg");
+    ext(IMAGE, "image/png", "png");
+    ext(IMAGE, "image/gif", "gif");
+    ext(IMAGE, "image/bmp", "bmp");
+    ext(IMAGE, "image/tiff", "tif", "tiff");
+    ext(IMAGE, "image/webp", "webp");
+    ext(IMAGE, "image/heic", "heic", "heif");
+    ext(IMAGE, "image/avif", "avif");
+    ext(VIDEO, "video/mp4", "mp4");
+    ext(VIDEO, "video/quicktime", "mov");
+    ext(VIDEO, "video/x-matroska", "mkv");
+    ext(VIDEO, "video/x-msvideo", "avi");
+    ext(VIDEO, "video/x-ms-wmv", "wmv");
+    ext(DOC, "application/pdf", "pdf");
+    ext(DOC, "application/msword", "doc");
+    ext(DOC, "application/vnd.openxmlformats-officedocument.wordprocessingml.document", "docx");
+    ext(DOC, "application/vnd.ms-excel", "xls");
+    ext(DOC, "application/vnd.openxmlformats-officedocument.spreadsheetml.sheet", "xlsx");
+    ext(DOC, "application/vnd.ms-powerpoint", "ppt");
+    ext(DOC, "application/vnd.openxmlformats-officedocument.presentationml.presentation", "pptx");
+    ext(DOC, "text/plain", "txt");
+    ext(DOC, "text/markdown", "md");
+    ext(DOC, "text/csv", "csv");
+    ext(DOC, "application/json", "json");
+  }
+
+  private FileType() {}
+
+  // MIME type from the head of the file (bytes from index 0 up to the limit), or null when no
+  // signature matches. A zip or OLE container is refined by the file name's extension.
+  public static String sniff(ByteBuffer head, CharSequence name) {
+    int len = head.limit();
+    if (len >= 12 && head.get(4) == 'f' && head.get(5) == 't' && head.get(6) == 'y' && head.get(7) == 'p') {
+      int brand = ((head.get(8) & 0xFF) << 24) | ((head.get(9) & 0xFF) << 16)
+          | ((head.get(10) & 0xFF) << 8) | (head.get(11) & 0xFF);
+      for (int i = 0; i < BRANDS.length; i++) {
+        if (BRANDS[i] == brand) return BRAND_MIMES[i];
+      }
+      return null;
+    }
+    if (len == 0) return null;
+    Sig[] candidates = BY_FIRST_BYTE[head.get(0) & 0xFF];
+    if (candidates == null) return null;
+    for (Sig s : candidates) {
+      if (!matches(head, s.at(), s.magic()) || (s.sub() != null && !matches(head, s.subAt(), s.sub()))) continue;
+      if (s.generic() && name != null) {
+        String byExt = mimeByExtension(name);
+        if (byExt != null && sameContainer(s.mime(), byExt)) return byExt;
+      }
+      return s.mime();
+    }
+    return null;
+  }
+
+  // Content first, extension second
+  public static String detect(ByteBuffer head, CharSequence name) {
+    String mime = sniff(head, name);
+    return mime != null ? mime : mimeByExtension(name);
+  }
+
+  public static String mimeByExtension(CharSequence name) {
+    int slot = slot(extKey(name));
+    return slot < 0 ? null : EXT_MIMES[slot];
+  }
+
+  // "image", "video", "doc" or "other", by extension
+  public static String kindByExtension(CharSequence name) {
+    int slot = slot(extKey(name));
+    return slot < 0 ? OTHER : EXT_KINDS[slot];
+  }
+
+  public static String kindOfMime(String mime) {
+    if (mime == null) return OTHER;
+    if (mime.startsWith("image/")) return IMAGE;
+    if (mime.startsWith("video/")) return VIDEO;
+    if (mime.startsWith("text/") || mime.startsWith("application/")) return DOC;
+    return OTHER;
+  }
+
+  public static boolean isImage(String mime) {
+    return mime != null && mime.startsWith("image/");
+  }
+
+  // Scanner filter: files without an extension are kept (they get sniffed), otherwise the
+  // extension must be in the table
+  public static boolean isWanted(CharSequence name) {
+    long key = extKey(name);
+    return key == 0 || slot(key) >= 0;
+  }
+
+  // Lower-case extension of the last path element packed into a long, one byte per char.
+  // 0 for no extension; -1 when it cannot be in the table (too long or not ASCII).
+  static long extKey(CharSequence name) {
+    int end = name.length();
+    int dot = -1;
+    for (int i = end - 1; i >= 0; i--) {
+      char c = name.charAt(i);
+      if (c == '.') { dot = i; break; }
+      if (c == '/' || c == '\\') return 0;
+    }
+    if (dot < 0 || dot == end - 1) return 0;
+    if (end - dot - 1 > 8) return -1;
+    long key = 0;
+    for (int i = dot + 1; i < end; i++) {
+      char c = name.charAt(i);
+      if (c >= 'A' && c <= 'Z') c += 'a' - 'A';
+      else if (c > 0x7F) return -1;
+      key = (key << 8) | c;
+    }
+    return key;
+  }
+
+  private static int slot(long key) {
+    if (key == 0 || key == -1) return -1;
+    for (int i = hash(key), n = 0; n < EXT_SLOTS; i = (i + 1) & (EXT_SLOTS - 1), n++) {
+      if (EXT_KEYS[i] == key) return i;
+      if (EXT_KEYS[i] == 0) return -1;
+    }
+    return -1;
+  }
+
+  private static int hash(long key) {
+    long h = key * 0x9E3779B97F4A7C15L;
+    return (int) (h >>> 57) & (EXT_SLOTS - 1);
+  }
+
+  private static boolean sameContainer(String container, String mime) {
+    if (container.equals("application/zip")) return mime.contains("openxmlformats");
+    return mime.equals("application/msword") || mime.equals("application/vnd.ms-excel")
+        || mime.equals("application/vnd.ms-powerpoint");
+  }
+
+  private static boolean matches(ByteBuffer head, int at, byte[] magic) {
+    if (at + magic.length > head.limit()) return false;
+    for (int i = 0; i < magic.length; i++) {
+      if (head.get(at + i) != magic[i]) return false;
+    }
+    return true;
+  }
+
+  private static void sig(int at, byte[] magic, String mime) {
+    add(new Sig(at, magic, 0, null, mime, false));
+  }
+
+  private static void generic(byte[] magic, String mime) {
+    add(new Sig(0, magic, 0, null, mime, true));
+  }
+
+  private static void riff(String form, String mime) {
+    add(new Sig(0, ascii("RIFF"), 8, ascii(form), mime, false));
+  }
+
+  private static void add(Sig s) {
+    int first = s.magic()[0] & 0xFF;
+    Sig[] old = BY_FIRST_BYTE[first];
+    Sig[] grown = old == null ? new Sig[1] : Arrays.copyOf(old, old.length + 1);
+    grown[grown.length - 1] = s;
+    BY_FIRST_BYTE[first] = grown;
+  }
+
+  private static void ext(String kind, String mime, String... exts) {
+    for (String e : exts) {
+      long key = extKey("." + e);
+      int i = hash(key);
+      while (EXT_KEYS[i] != 0) i = (i + 1) & (EXT_SLOTS - 1);
+      EXT_KEYS[i] = key;
+      EXT_MIMES[i] = mime;
+      EXT_KINDS[i] = kind;
+    }
+  }
+
+  private static byte[] ascii(String s) {
+    return s.getBytes(StandardCharsets.ISO_8859_1);
+  }
+
+  private static byte[] bytes(int... v) {
+    byte[] b = new byte[v.length];
+    for (int i = 0; i < v.length; i++) b[i] = (byte) v[i];
+    return b;
+  }
+}
@@ -1,5 +1,6 @@
 package com.aialyzer.indexer;
 
+import java.io.IOException;
 import java.nio.file.FileVisitOption;
 import java.nio.file.FileVisitResult;
 import java.nio.file.FileVisitor;
@@ -7,22 +8,47 @@ import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.SimpleFileVisitor;
 import java.nio.file.attribute.BasicFileAttributes;
-import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.SQLException;
 import java.time.Instant;
+import java.util.ArrayList;
 import java.util.EnumSet;
 import java.util.List;
 
 public final class FsIndexer {
-    private final Connection cx;
+    public static final int DEFAULT_COMMIT_EVERY = 5000;
+    private static final long PROGRESS_EVERY_NANOS = 5_000_000_000L;
 
-    public FsIndexer(Connection cx) {
-        this.cx = cx;
+    private final DatabasePool db;
+    private final int commitEvery;
+    private final KnownFiles known;   // null for a full re-enqueue
+
+    private long seen;        // wanted files the walk reached
+    private long enqueued;    // of those, queued for the worker
+    private final List<String> pending = new ArrayList<>();
+    private long startedNanos;
+    private long lastReportNanos;
+
+    public FsIndexer(DatabasePool db) {
+        this(db, DEFAULT_COMMIT_EVERY);
+    }
+
+    public FsIndexer(DatabasePool db, int commitEvery) {
+        this(db, commitEvery, null);
+    }
+
+    public FsIndexer(DatabasePool db, int commitEvery, KnownFiles known) {
+        this.db = db;
+        this.commitEvery = Math.max(1, commitEvery);
+        this.known = known;
     }
 
     public void indexRoots(List<Path> roots) throws Exception {
-        cx.setAutoCommit(false);
+        final long now = Instant.now().getEpochSecond();
+        final PathFilter filter = PathFilter.active();
+        seen = enqueued = 0;
+        pending.clear();
+        startedNanos = lastReportNanos = System.nanoTime();
         try {
             for (Path root : roots) {
                 if (!Files.exists(root)) {
@@ -31,40 +57,77 @@ public final class FsIndexer {
 
                 FileVisitor<Path> visitor = new SimpleFileVisitor<>() {
                     @Override
-                    public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
-                        if (!attrs.isDirectory()) {
+                    public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) {
+                        return filter.acceptDir(dir) ? FileVisitResult.CONTINUE : FileVisitResult.SKIP_SUBTREE;
+                    }
+
+                    @Override
+                    public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                        if (!attrs.isRegularFile() || !filter.acceptFile(file)) return FileVisitResult.CONTINUE;
+                        seen++;
+                        if (known == null || known.changed(file, attrs)) {
                             try {
-                                enqueueFileTask(file);
-                            } catch (SQLException ignored) {
+                                enqueueFileTask(file, now);
+                            } catch (SQLException e) {
+                                throw new IOException("Enqueue failed for " + file, e);
                             }
                         }
+                        maybeReport();
                         return FileVisitResult.CONTINUE;
                     }
 
                     @Override
-                    public FileVisitResult visitFileFailed(Path file, java.io.IOException exc) {
+                    public FileVisitResult visitFileFailed(Path file, IOException exc) {
                         return FileVisitResult.CONTINUE;
                     }
                 };
 
                 Files.walkFileTree(root, EnumSet.of(FileVisitOption.FOLLOW_LINKS), Integer.MAX_VALUE, visitor);
             }
-            cx.commit();
-        } catch (Exception e) {
-            cx.rollback();
-            throw e;
+            flush(now);
+        } finally {
+            pending.clear();
         }
+        report(System.nanoTime(), "done");
     }
 
-    private void enqueueFileTask(Path file) throws SQLException {
-        long now = Instant.now().getEpochSecond();
-        try (PreparedStatement ps = cx.prepareStatement(
-                "insert into scan_queue(path,kind,not_before_unix,attempts) values (?,?,?,0) " +
-                "on conflict(path,kind) do update set not_before_unix=excluded.not_before_unix")) {
-            ps.setString(1, file.toString());
-            ps.setString(2, "file");
-            ps.setLong(3, now);
-            ps.executeUpdate();
+    private void enqueueFileTask(Path file, long now) throws SQLException {
+        pending.add(file.toString());
+        enqueued++;
+        if (pending.size() >= commitEvery) {
+            flush(now);
         }
     }
+
+    // writes the pending batch in its own transaction so the WAL can be checkpointed during
+    // long walks; the writer is not held while the walk runs
+    private void flush(long now) throws SQLException {
+        if (!pending.isEmpty()) {
+            db.write(cx -> {
+                PreparedStatement ps = StatementCache.of(cx).get(DatabaseManager.ENQUEUE_SQL);
+                for (String p : pending) {
+                    ps.setString(1, p);
+                    ps.setString(2, "file");
+                    ps.setLong(3, now);
+                    ps.addBatch();
+                }
+                return ps.executeBatch();
+            });
+            pending.clear();
+            QueueSignal.global().signal();
+        }
+    }
+
+    private void maybeReport() {
+        long t = System.nanoTime();
+        if (t - lastReportNanos >= PROGRESS_EVERY_NANOS) {
+            lastReportNanos = t;
+            report(t, "progress");
+        }
+    }
+
+    private void report(long t, String what) {
+        double secs = Math.max(1e-3, (t - startedNanos) / 1e9);
+        System.out.printf("Indexing %s: %,d files seen, %,.0f files/sec, %,d enqueued%n", what, seen, seen / secs, enqueued);
+    }
 }
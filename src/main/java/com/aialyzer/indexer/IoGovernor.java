@@ -0,0 +1,126 @@
+package com.aialyzer.indexer;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+// Sets the pace of passive work from how busy the machine is. Once a second it reads
+//  - /proc/pressure/io: share of time tasks were stalled on I/O (avg10)
+//  - /proc/loadavg: 1-minute load per CPU
+//  - the worker's own task latency against the best it has seen
+// and moves a scale between MIN_SCALE and 1: halved when any signal says the host is busy,
+// raised by a quarter (at least STEP) when all are quiet. Every governed RateLimiter runs at
+// its full rate times that scale, so an idle host gets full speed within a few seconds and
+// interactive load is answered at the next sample. Signals that cannot be read are ignored.
+public final class IoGovernor implements AutoCloseable {
+  private static final Path PSI_IO = Paths.get("/proc/pressure/io");
+  private static final Path LOADAVG = Paths.get("/proc/loadavg");
+
+  private static final double MIN_SCALE = 0.02;
+  private static final double STEP = 0.05;
+  private static final double PSI_BUSY = 5.0;      // % of time stalled on I/O
+  private static final double PSI_QUIET = 1.0;
+  private static final double LOAD_BUSY = 1.0;     // runnable + D-state tasks per CPU
+  private static final double LOAD_QUIET = 0.7;
+  private static final double LATENCY_BUSY = 4.0;  // times the baseline task latency
+  private static final long LATENCY_FLOOR_NANOS = 20_000_000;
+
+  private record Governed(RateLimiter limiter, double fullRate, double minRate) {}
+
+  private final List<Governed> governed = new CopyOnWriteArrayList<>();
+  private final ScheduledExecutorService sampler = Executors.newSingleThreadScheduledExecutor(r -> {
+    Thread t = new Thread(r, "IoGovernor");
+    t.setDaemon(true);
+    return t;
+  });
+  private final int cpus = Runtime.getRuntime().availableProcessors();
+
+  private volatile double scale = 0.25;   // start cautious, ramp up while quiet
+  private double latencyEwma;             // nanos; guarded by this
+  private double latencyBest = Double.MAX_VALUE;
+
+  public static IoGovernor start() {
+    IoGovernor g = new IoGovernor();
+    g.sampler.scheduleWithFixedDelay(g::sample, 1, 1, TimeUnit.SECONDS);
+    return g;
+  }
+
+  private IoGovernor() {}
+
+  // limiter will run at fullRate * scale, never below minRate
+  public RateLimiter govern(RateLimiter limiter, double fullRate, double minRate) {
+    Governed g = new Governed(limiter, fullRate, minRate);
+    governed.add(g);
+    apply(g, scale);
+    return limiter;
+  }
+
+  public double scale() {
+    return scale;
+  }
+
+  // Wall time of one unit of work (one task), as seen by the worker
+  public synchronized void recordLatency(long nanos) {
+    latencyEwma = latencyEwma == 0 ? nanos : latencyEwma * 0.9 + nanos * 0.1;
+    // the baseline drifts up slowly so a one-off fast stretch does not pin it forever
+    latencyBest = Math.min(latencyBest * 1.001, latencyEwma);
+  }
+
+  private void sample() {
+    double psi = readPsiAvg10();
+    double load = readLoadPerCpu();
+    double latencyRatio;
+    synchronized (this) {
+      latencyRatio = latencyEwma < LATENCY_FLOOR_NANOS || latencyBest == Double.MAX_VALUE
+          ? 0 : latencyEwma / latencyBest;
+    }
+
+    boolean busy = psi >= PSI_BUSY || load >= LOAD_BUSY || latencyRatio >= LATENCY_BUSY;
+    boolean quiet = (psi < 0 || psi < PSI_QUIET) && (load < 0 || load < LOAD_QUIET)
+        && latencyRatio < LATENCY_BUSY / 2;
+
+    double s = scale;
+    if (busy) s = Math.max(MIN_SCALE, s / 2);
+    else if (quiet) s = Math.min(1.0, s + Math.max(STEP, s / 4));
+    if (s != scale) {
+      scale = s;
+      for (Governed g : governed) apply(g, s);
+    }
+  }
+
+  private static void apply(Governed g, double s) {
+    g.limiter().setRate(Math.max(g.minRate(), g.fullRate() * s));
+  }
+
+  // "some avg10=1.23 avg60=... total=..." -> 1.23; -1 when unavailable
+  private static double readPsiAvg10() {
+    try {
+      String line = Files.readAllLines(PSI_IO).get(0);
+      int at = line.indexOf("avg10=");
+      if (at < 0) return -1;
+      int end = line.indexOf(' ', at);
+      return Double.parseDouble(line.substring(at + 6, end < 0 ? line.length() : end));
+    } catch (IOException | RuntimeException e) {
+      return -1;
+    }
+  }
+
+  private double readLoadPerCpu() {
+    try {
+      String s = Files.readString(LOADAVG);
+      return Double.parseDouble(s.substring(0, s.indexOf(' '))) / cpus;
+    } catch (IOException | RuntimeException e) {
+      return -1;
+    }
+  }
+
+  @Override public void close() {
+    sampler.shutdownNow();
+  }
+}
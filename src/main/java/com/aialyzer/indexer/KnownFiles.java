@@ -0,0 +1,246 @@
+package com.aialyzer.indexer;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.locks.StampedLock;
+
+// Snapshot of the live files rows, used by the scanners to skip unchanged files: XXH64 of the
+// path -> size, mtime and whether the file pass hashed it. Kept in three primitive arrays with
+// linear probing (20 bytes a slot, a power of two of them, at most 3/4 full), so 27-53 bytes
+// a file and no objects per entry: 10M files fit in 320 MB. Loaded in one sequential scan;
+// QueueWorker adds what it writes after each commit. Lookups from walker threads share the
+// read lock (the seen bit is set atomically under it); inserts, removals and growth take the
+// write lock.
+public final class KnownFiles {
+  private static final long SIZE_MASK = (1L << 48) - 1;
+  private static final long HASHED = 1L << 48;
+  private static final long SEEN = 1L << 49;        // reported by the current crawl
+  private static final long SEED = 0x6b6e6f776eL;
+  private static final int MIN_CAPACITY = 1 << 16;
+  private static final VarHandle META = MethodHandles.arrayElementVarHandle(long[].class);
+
+  private final StampedLock lock = new StampedLock();
+  private long[] keys;      // path hash, 0 = empty slot
+  private long[] meta;      // size (low 48 bits) | HASHED | SEEN
+  private int[] mtimes;     // low 32 bits of mtime_unix
+  private int mask;
+  private int size;
+
+  private KnownFiles(int capacity) {
+    allocate(capacity);
+  }
+
+  public static KnownFiles load(Connection cx) throws SQLException {
+    KnownFiles k = new KnownFiles(MIN_CAPACITY);
+    try (Statement st = cx.createStatement();
+         ResultSet rs = st.executeQuery(
+           "select d.path||f.name,f.size_bytes,f.mtime_unix,f.quick_hash is not null " +
+           "from files f join dirs d on d.id=f.dir_id where f.kind is null or f.kind<>'missing'")) {
+      while (rs.next()) {
+        k.insert(hash(rs.getString(1)), rs.getLong(2), rs.getLong(3), rs.getBoolean(4));
+      }
+    }
+    return k;
+  }
+
+  public int size() {
+    long stamp = lock.readLock();
+    try {
+      return size;
+    } finally {
+      lock.unlockRead(stamp);
+    }
+  }
+
+  // Bytes held by the arrays
+  public long memoryBytes() {
+    long stamp = lock.readLock();
+    try {
+      return (long) keys.length * (8 + 8 + 4);
+    } finally {
+      lock.unlockRead(stamp);
+    }
+  }
+
+  // True when the file is new, its size/mtime differ from the stored row, or the file pass
+  // never hashed it; marks it as seen
+  public boolean changed(Path file, BasicFileAttributes attrs) {
+    long h = hash(file.toString());
+    long stamp = lock.readLock();
+    try {
+      int i = find(h);
+      if (i < 0) return true;
+      long m = (long) META.getAndBitwiseOr(meta, i, SEEN);
+      long fileSize = attrs.size();
+      return (m & SIZE_MASK) != (fileSize & SIZE_MASK)
+          || mtimes[i] != (int) (attrs.lastModifiedTime().toMillis() / 1000L)
+          || ((m & HASHED) == 0 && fileSize > 0);
+    } finally {
+      lock.unlockRead(stamp);
+    }
+  }
+
+  // Row written by the worker; keeps the seen bit of an existing entry
+  public void put(String path, long size, long mtime, boolean hashed) {
+    long h = hash(path);
+    long stamp = lock.writeLock();
+    try {
+      insert(h, size, mtime, hashed);
+    } finally {
+      lock.unlockWrite(stamp);
+    }
+  }
+
+  // Row marked missing
+  public void remove(String path) {
+    long h = hash(path);
+    long stamp = lock.writeLock();
+    try {
+      int i = find(h);
+      if (i >= 0) delete(i);
+    } finally {
+      lock.unlockWrite(stamp);
+    }
+  }
+
+  // Enqueues a file task for live rows under the roots that the walk did not report and that
+  // no longer exist; the worker then marks them missing. The rows come from one scan of the
+  // database per root, since the snapshot does not keep paths. Returns the number queued.
+  public int enqueueMissing(DatabasePool db, List<Path> roots) throws SQLException {
+    long now = Instant.now().getEpochSecond();
+    List<String> gone = new ArrayList<>();
+    db.read(cx -> {
+      PreparedStatement ps = StatementCache.of(cx).get(
+          "select d.path||f.name from dirs d join files f on f.dir_id=d.id " +
+          "where d.path>=? and d.path<? and (f.kind is null or f.kind<>'missing')");
+      for (Path root : roots) {
+        String key = PathDictionary.dirKey(root);
+        ps.setString(1, key);
+        ps.setString(2, PathDictionary.subtreeEnd(key));
+        try (ResultSet rs = ps.executeQuery()) {
+          while (rs.next()) {
+            String path = rs.getString(1);
+            if (!seen(path) && Files.notExists(Paths.get(path), LinkOption.NOFOLLOW_LINKS)) gone.add(path);
+          }
+        }
+      }
+      return null;
+    });
+    if (gone.isEmpty()) return 0;
+    db.write(cx -> {
+      PreparedStatement ps = StatementCache.of(cx).get(DatabaseManager.ENQUEUE_SQL);
+      int n = 0;
+      for (String path : gone) {
+        ps.setString(1, path);
+        ps.setString(2, "file");
+        ps.setLong(3, now);
+        ps.addBatch();
+        if (++n % 1000 == 0) ps.executeBatch();
+      }
+      return ps.executeBatch();
+    });
+    QueueSignal.global().signal();
+    return gone.size();
+  }
+
+  private boolean seen(String path) {
+    long h = hash(path);
+    long stamp = lock.readLock();
+    try {
+      int i = find(h);
+      return i >= 0 && ((long) META.getVolatile(meta, i) & SEEN) != 0;
+    } finally {
+      lock.unlockRead(stamp);
+    }
+  }
+
+  private static long hash(String path) {
+    long h = FastHash.xxh64(path, SEED);
+    return h == 0 ? 1 : h;
+  }
+
+  // Slot of h, or -1
+  private int find(long h) {
+    for (int i = (int) mix(h) & mask; ; i = (i + 1) & mask) {
+      long k = keys[i];
+      if (k == h) return i;
+      if (k == 0) return -1;
+    }
+  }
+
+  // Caller holds the write lock (or is still loading)
+  private void insert(long h, long fileSize, long mtime, boolean hashed) {
+    if ((size + 1) * 4L > keys.length * 3L) grow();
+    int i = (int) mix(h) & mask;
+    while (keys[i] != 0 && keys[i] != h) i = (i + 1) & mask;
+    long seen = 0;
+    if (keys[i] == 0) {
+      keys[i] = h;
+      size++;
+    } else {
+      seen = meta[i] & SEEN;
+    }
+    meta[i] = (fileSize & SIZE_MASK) | (hashed ? HASHED : 0) | seen;
+    mtimes[i] = (int) mtime;
+  }
+
+  // Backward-shift deletion: later entries of the probe run move up so lookups never need
+  // tombstones
+  private void delete(int i) {
+    for (int j = (i + 1) & mask; keys[j] != 0; j = (j + 1) & mask) {
+      int home = (int) mix(keys[j]) & mask;
+      // j can fill the hole at i unless its home lies cyclically in (i, j]
+      boolean stays = i <= j ? (i < home && home <= j) : (i < home || home <= j);
+      if (stays) continue;
+      keys[i] = keys[j];
+      meta[i] = meta[j];
+      mtimes[i] = mtimes[j];
+      i = j;
+    }
+    keys[i] = 0;
+    meta[i] = 0;
+    mtimes[i] = 0;
+    size--;
+  }
+
+  private void grow() {
+    long[] oldKeys = keys;
+    long[] oldMeta = meta;
+    int[] oldMtimes = mtimes;
+    allocate(oldKeys.length * 2);
+    for (int j = 0; j < oldKeys.length; j++) {
+      long h = oldKeys[j];
+      if (h == 0) continue;
+      int i = (int) mix(h) & mask;
+      while (keys[i] != 0) i = (i + 1) & mask;
+      keys[i] = h;
+      meta[i] = oldMeta[j];
+      mtimes[i] = oldMtimes[j];
+    }
+  }
+
+  private void allocate(int capacity) {
+    keys = new long[capacity];
+    meta = new long[capacity];
+    mtimes = new int[capacity];
+    mask = capacity - 1;
+  }
+
+  // The table index uses the low bits; fold in the high ones as well
+  private static long mix(long h) {
+    return h ^ (h >>> 32);
+  }
+}
@@ -0,0 +1,211 @@
+package com.aialyzer.indexer;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.Locale;
+
+// Turns watcher deletes and creates into row updates. A delete marks the path, and everything
+// under it if it was a directory, missing; the rows keep size, mtime, hashes and file_key. A
+// create that matches a missing row on size, mtime and file_key is a rename: the row moves to
+// the new directory and name without the file being read (image_meta and label_history follow
+// by file id). A created directory is matched by sampling a few of its files; when they agree
+// on one old directory, the dirs keys of that subtree are rewritten to the new location.
+// The instance methods run inside the caller's transaction and do no file system I/O; the
+// directory samples they need are taken beforehand with sample(). Each moved row is
+// also added to the caller's list, so it can update the KnownFiles snapshot once that commits.
+final class MoveTracker {
+  private static final int DIR_SAMPLES = 8;
+  private static final int SAMPLE_SCAN_LIMIT = 256;   // entries looked at while collecting samples
+
+  private static final String MARK_SUBTREE_MISSING_SQL =
+    "update files set prior_kind=kind, kind='missing', last_scanned_unix=? " +
+    "where dir_id in (select id from dirs where path>=? and path<?) and kind is not 'missing'";
+
+  private static final String FIND_MISSING_SQL =
+    "select f.id, d.path||f.name, f.file_key, f.quick_hash is not null from files f join dirs d on d.id=f.dir_id " +
+    "where f.kind='missing' and f.size_bytes=? and f.mtime_unix=? limit 8";
+
+  private static final String MOVE_FILE_SQL =
+    "update files set dir_id=?, name=?, ext=?, kind=coalesce(prior_kind,kind), prior_kind=null, " +
+    "  file_key=?, last_scanned_unix=? " +
+    "where id=? and kind='missing' and not exists (select 1 from files where dir_id=? and name=?)";
+
+  // directories of the old subtree that only hold missing files; one that still has live
+  // files was not part of the move
+  private static final String SUBTREE_DIRS_SQL =
+    "select id from dirs where path>=? and path<? " +
+    "and not exists (select 1 from files f where f.dir_id=dirs.id and f.kind is not 'missing')";
+
+  private static final String MOVE_DIR_SQL = "update or ignore dirs set path=?||substr(path,?) where id=?";
+
+  private static final String RESTORE_DIR_SQL =
+    "update files set kind=coalesce(prior_kind,kind), prior_kind=null, last_scanned_unix=? " +
+    "where dir_id=? and kind='missing'";
+
+  // live rows of a directory just moved, with their paths at the new location
+  private static final String DIR_ROWS_SQL =
+    "select d.path||f.name, f.size_bytes, f.mtime_unix, f.quick_hash is not null " +
+    "from files f join dirs d on d.id=f.dir_id where f.dir_id=? and f.kind is not 'missing'";
+
+  private record Missing(long id, String path, boolean hashed) {}
+
+  // A file under a created directory, stat'ed before the transaction
+  record Sample(Path file, BasicFileAttributes attrs) {}
+
+  // A row now stored under a new path
+  record Moved(String from, String to, long size, long mtime, boolean hashed) {}
+
+  private final Connection cx;
+  private final List<Moved> moved;
+
+  MoveTracker(Connection cx, List<Moved> moved) {
+    this.cx = cx;
+    this.moved = moved;
+  }
+
+  // The path is gone: marks its row, or the rows of the subtree it held, missing
+  int markMissing(Path path, long now) throws SQLException {
+    String p = path.toString();
+    PreparedStatement one = StatementCache.of(cx).get(DatabaseManager.MARK_MISSING_SQL);
+    one.setLong(1, now);
+    one.setString(2, PathDictionary.dirOf(p));
+    one.setString(3, PathDictionary.nameOf(p));
+    int n = one.executeUpdate();
+
+    String key = PathDictionary.dirKey(path);
+    PreparedStatement sub = StatementCache.of(cx).get(MARK_SUBTREE_MISSING_SQL);
+    sub.setLong(1, now);
+    sub.setString(2, key);
+    sub.setString(3, PathDictionary.subtreeEnd(key));
+    return n + sub.executeUpdate();
+  }
+
+  // True when a missing row was moved to this new file
+  boolean moveFile(Path file, BasicFileAttributes a, long now) throws SQLException {
+    String key = fileKey(a);
+    Missing from = findMissing(a, key, null);
+    if (from == null) return false;
+    String to = file.toString();
+    long dir = PathDictionary.of(cx).intern(PathDictionary.dirOf(to));
+    String name = PathDictionary.nameOf(to);
+    if (update(MOVE_FILE_SQL, dir, name, ext(file), key, now, from.id(), dir, name) == 0) return false;
+    moved.add(new Moved(from.path(), to, a.size(), a.lastModifiedTime().toMillis() / 1000L, from.hashed()));
+    return true;
+  }
+
+  // Rows moved when the new directory is recognised as a rename of a missing one; 0 otherwise
+  int moveDir(Path dir, List<Sample> samples, long now) throws SQLException {
+    String from = null;
+    for (Sample sm : samples) {
+      BasicFileAttributes a = sm.attrs();
+      String rel = dir.relativize(sm.file()).toString();
+      Missing old = findMissing(a, fileKey(a), rel);
+      if (old == null) return 0;
+      String oldDir = old.path().substring(0, old.path().length() - rel.length());   // keeps the separator
+      if (from != null && !from.equals(oldDir)) return 0;   // samples disagree: not one move
+      from = oldDir;
+    }
+    if (from == null) return 0;
+
+    List<Long> dirs = new ArrayList<>();
+    PreparedStatement sel = StatementCache.of(cx).get(SUBTREE_DIRS_SQL);
+    sel.setString(1, from);
+    sel.setString(2, PathDictionary.subtreeEnd(from));
+    try (ResultSet rs = sel.executeQuery()) {
+      while (rs.next()) dirs.add(rs.getLong(1));
+    }
+
+    // a key already taken at the destination is left alone ('or ignore'); its missing files
+    // stay missing and the new files there are queued as usual
+    String to = PathDictionary.dirKey(dir);
+    int n = 0;
+    PreparedStatement rows = StatementCache.of(cx).get(DIR_ROWS_SQL);
+    for (long id : dirs) {
+      if (update(MOVE_DIR_SQL, to, from.length() + 1, id) == 0) continue;
+      n += update(RESTORE_DIR_SQL, now, id);
+      rows.setLong(1, id);
+      try (ResultSet rs = rows.executeQuery()) {
+        while (rs.next()) {
+          String path = rs.getString(1);
+          moved.add(new Moved(from + path.substring(to.length()), path, rs.getLong(2), rs.getLong(3), rs.getBoolean(4)));
+        }
+      }
+    }
+    if (!dirs.isEmpty()) PathDictionary.of(cx).renamed();
+    return n;
+  }
+
+  // Missing row with this size and mtime: the one with the same file_key, else the only one.
+  // suffix, when given, must end the old path (directory samples).
+  private Missing findMissing(BasicFileAttributes a, String key, String suffix) throws SQLException {
+    PreparedStatement ps = StatementCache.of(cx).get(FIND_MISSING_SQL);
+    ps.setLong(1, a.size());
+    ps.setLong(2, a.lastModifiedTime().toMillis() / 1000L);
+    List<Missing> found = new ArrayList<>();
+    try (ResultSet rs = ps.executeQuery()) {
+      while (rs.next()) {
+        Missing m = new Missing(rs.getLong(1), rs.getString(2), rs.getBoolean(4));
+        String k = rs.getString(3);
+        if (suffix != null && !(m.path().endsWith(suffix) && m.path().length() > suffix.length())) continue;
+        if (key != null && k != null) {
+          if (key.equals(k)) return m;
+          continue;
+        }
+        found.add(m);
+      }
+    }
+    return found.size() == 1 ? found.get(0) : null;
+  }
+
+  // A few regular files under dir, nearest first, with their attributes; no transaction needed
+  static List<Sample> sample(Path dir) {
+    List<Sample> out = new ArrayList<>();
+    Deque<Path> dirs = new ArrayDeque<>();
+    dirs.add(dir);
+    int looked = 0;
+    while (!dirs.isEmpty() && out.size() < DIR_SAMPLES && looked < SAMPLE_SCAN_LIMIT) {
+      try (DirectoryStream<Path> ds = Files.newDirectoryStream(dirs.poll())) {
+        for (Path p : ds) {
+          if (++looked > SAMPLE_SCAN_LIMIT || out.size() >= DIR_SAMPLES) break;
+          BasicFileAttributes a;
+          try {
+            a = Files.readAttributes(p, BasicFileAttributes.class);
+          } catch (IOException | RuntimeException e) {
+            continue;
+          }
+          if (a.isDirectory()) dirs.add(p);
+          else if (a.isRegularFile()) out.add(new Sample(p, a));
+        }
+      } catch (IOException | RuntimeException ignore) {
+      }
+    }
+    return out;
+  }
+
+  static String fileKey(BasicFileAttributes a) {
+    return a.fileKey() == null ? null : a.fileKey().toString();
+  }
+
+  private static String ext(Path file) {
+    String name = file.getFileName() == null ? "" : file.getFileName().toString();
+    int dot = name.lastIndexOf('.');
+    return (dot >= 0 && dot < name.length() - 1) ? name.substring(dot + 1).toLowerCase(Locale.ROOT) : "";
+  }
+
+  private int update(String sql, Object... params) throws SQLException {
+    PreparedStatement ps = StatementCache.of(cx).get(sql);
+    for (int i = 0; i < params.length; i++) ps.setObject(i + 1, params[i]);
+    return ps.executeUpdate();
+  }
+}
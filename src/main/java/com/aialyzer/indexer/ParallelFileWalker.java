@@ -0,0 +1,123 @@
+package com.aialyzer.indexer;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicReference;
+
+// Work-stealing version of FileScanner.walk: every directory, and every slice of a large
+// directory, becomes a fork/join subtask, so one big root still spreads over all threads.
+// Same rules as FileScanner: links are followed, excluded dirs and unwanted extensions are
+// skipped, unreadable entries are ignored. The visitor is called concurrently.
+public final class ParallelFileWalker {
+  // entries stat'ed by one task before the rest of a directory is split off
+  private static final int SLICE = 256;
+
+  private final int threads;
+
+  public ParallelFileWalker(int threads) {
+    this.threads = Math.max(1, threads);
+  }
+
+  public void walk(List<Path> roots, FileScanner.Visitor v) throws IOException {
+    Walk w = new Walk(v);
+    ForkJoinPool pool = new ForkJoinPool(threads);
+    try {
+      List<ForkJoinTask<?>> tasks = new ArrayList<>();
+      for (Path root : roots) tasks.add(pool.submit(new EntriesTask(w, List.of(root))));
+      for (ForkJoinTask<?> t : tasks) t.join();
+    } finally {
+      pool.shutdownNow();
+    }
+    if (w.failure.get() != null) throw w.failure.get();
+  }
+
+  private static final class Walk {
+    final FileScanner.Visitor visitor;
+    final Set<Object> visitedDirs = ConcurrentHashMap.newKeySet();   // fileKeys, guards link cycles
+    final AtomicReference<IOException> failure = new AtomicReference<>();
+
+    Walk(FileScanner.Visitor visitor) {
+      this.visitor = visitor;
+    }
+
+    boolean stopped() {
+      return failure.get() != null || Thread.currentThread().isInterrupted();
+    }
+  }
+
+  // Lists one directory and hands its entries out in slices
+  @SuppressWarnings("serial")   // never serialized
+  private static final class DirTask extends RecursiveAction {
+    private final Walk w;
+    private final Path dir;
+
+    DirTask(Walk w, Path dir) {
+      this.w = w; this.dir = dir;
+    }
+
+    @Override protected void compute() {
+      List<ForkJoinTask<?>> forked = new ArrayList<>();
+      List<Path> slice = new ArrayList<>(SLICE);
+      try (DirectoryStream<Path> ds = Files.newDirectoryStream(dir)) {
+        for (Path p : ds) {
+          if (w.stopped()) break;
+          slice.add(p);
+          if (slice.size() == SLICE) {
+            forked.add(new EntriesTask(w, slice).fork());
+            slice = new ArrayList<>(SLICE);
+          }
+        }
+      } catch (IOException | RuntimeException ignore) {
+      }
+      if (!slice.isEmpty()) new EntriesTask(w, slice).compute();
+      for (ForkJoinTask<?> t : forked) t.join();
+    }
+  }
+
+  // Stats entries, visits wanted files and forks a DirTask per subdirectory
+  @SuppressWarnings("serial")
+  private static final class EntriesTask extends RecursiveAction {
+    private final Walk w;
+    private final List<Path> entries;
+
+    EntriesTask(Walk w, List<Path> entries) {
+      this.w = w; this.entries = entries;
+    }
+
+    @Override protected void compute() {
+      List<ForkJoinTask<?>> forked = new ArrayList<>();
+      for (Path p : entries) {
+        if (w.stopped()) break;
+        BasicFileAttributes a;
+        try {
+          a = Files.readAttributes(p, BasicFileAttributes.class);
+        } catch (IOException | RuntimeException e) {
+          continue;
+        }
+        if (a.isDirectory()) {
+          if (!PathFilter.active().acceptDir(p)) continue;
+          Object key = a.fileKey();
+          if (key != null && !w.visitedDirs.add(key)) continue;
+          forked.add(new DirTask(w, p).fork());
+        } else if (a.isRegularFile() && PathFilter.active().acceptFile(p)) {
+          try {
+            w.visitor.onFile(p, a);
+          } catch (IOException e) {
+            w.failure.compareAndSet(null, e);
+          }
+        }
+      }
+      for (ForkJoinTask<?> t : forked) t.join();
+    }
+  }
+}
@@ -5,135 +5,319 @@ import java.nio.file.*;
 import java.nio.file.attribute.BasicFileAttributes;
 import java.sql.Connection;
 import java.sql.PreparedStatement;
+import java.sql.SQLException;
 import java.time.Instant;
+import java.util.ArrayList;
 import java.util.List;
-import java.util.Set;
+import java.util.Queue;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.LongAdder;
 
 public final class PassiveScanner implements AutoCloseable {
-  private final Connection cx;
+  private final DatabasePool db;
   private final List<Path> roots;
   private final int maxFilesPerSecond;
+  private final long minPassSeconds;   // a trickle pass starts at most this often per root
+  private final KnownFiles known;   // null to enqueue every file the trickle sees
+  private final IoGovernor governor; // null: trickle runs at max-fps regardless of load
   private final ScheduledExecutorService scheduler = Executors.newScheduledThreadPool(1);
   private WatchService watcher;
+  private WatchRegistrar registrar;
+  private Thread watchThread;
+  private final EventCoalescer events = new EventCoalescer(SETTLE_MILLIS, MAX_DELAY_MILLIS);
+  private final List<TrickleCrawler> crawlers = new ArrayList<>();        // scheduler thread only
+  private final Queue<Path> unwatched = new ConcurrentLinkedQueue<>();    // subtrees to crawl instead
+  private int fallbackCrawlers;
+  private final LongAdder droppedEvents = new LongAdder();
+  private final LongAdder overflows = new LongAdder();
+  private Metrics lastReported;
+  private String lastFlushError;   // scheduler thread only; logged once per distinct error
   private volatile boolean stop = false;
 
-  private static final Set<String> EXCLUDE_DIRS = Set.of("$recycle.bin", "node_modules", ".git");
-  private static final Set<String> IMAGE_EXT = Set.of("jpg","jpeg","png","gif","bmp","tif","tiff","webp","heic");
-  private static final Set<String> VIDEO_EXT = Set.of("mp4","mov","mkv","avi","wmv");
-  private static final Set<String> DOC_EXT   = Set.of("pdf","doc","docx","xls","xlsx","ppt","pptx","txt","md","csv","json");
+  public record Metrics(int watchedDirs, int unwatchedDirs, long overflows, long droppedEvents,
+                        long events, long queuedPaths) {}
 
-  public PassiveScanner(Connection cx, List<Path> roots, int maxFilesPerSecond) {
-    this.cx = cx; this.roots = roots; this.maxFilesPerSecond = Math.max(1, maxFilesPerSecond);
+  // a path is queued once it has had no events for SETTLE_MILLIS, or MAX_DELAY_MILLIS after
+  // its first event if it keeps changing
+  private static final long SETTLE_MILLIS = 2000;
+  private static final long MAX_DELAY_MILLIS = 30_000;
+  private static final int FLUSH_MAX = 2000;
+  // unwatchable subtrees that get a crawler of their own; beyond this the root crawl covers them
+  private static final int MAX_FALLBACK_CRAWLERS = 32;
+  private static final long METRICS_EVERY_SECONDS = 60;
+  public static final long DEFAULT_PASS_INTERVAL_SECONDS = 3600;
+
+
+  public PassiveScanner(DatabasePool db, List<Path> roots, int maxFilesPerSecond) {
+    this(db, roots, maxFilesPerSecond, null);
+  }
+
+  public PassiveScanner(DatabasePool db, List<Path> roots, int maxFilesPerSecond, KnownFiles known) {
+    this(db, roots, maxFilesPerSecond, known, null);
+  }
+
+  public PassiveScanner(DatabasePool db, List<Path> roots, int maxFilesPerSecond, KnownFiles known,
+                        IoGovernor governor) {
+    this(db, roots, maxFilesPerSecond, known, governor, DEFAULT_PASS_INTERVAL_SECONDS);
+  }
+
+  public PassiveScanner(DatabasePool db, List<Path> roots, int maxFilesPerSecond, KnownFiles known,
+                        IoGovernor governor, long minPassSeconds) {
+    this.db = db; this.roots = roots; this.maxFilesPerSecond = Math.max(1, maxFilesPerSecond);
+    this.minPassSeconds = Math.max(0, minPassSeconds);
+    this.known = known;
+    this.governor = governor;
   }
 
   // trickle crawl
   public void startAsync() throws Exception {
     watcher = FileSystems.getDefault().newWatchService();
-    for (Path r : roots) registerAll(r);
-
-    // drain watcher
-    scheduler.scheduleWithFixedDelay(this::drainWatcher, 0, 250, TimeUnit.MILLISECONDS);
-
-    // trickle crawl limited below 10Hz
-    final int perTick = Math.max(1, maxFilesPerSecond / 10);
-    scheduler.scheduleWithFixedDelay(() -> {
-      if (stop) return;
-      int left = perTick;
-      for (Path r : roots) {
-        if (left <= 0) break;
-        try (DirectoryStream<Path> ds = Files.newDirectoryStream(r)) {
-          for (Path p : ds) {
-            if (left <= 0) break;
-            try {
-              BasicFileAttributes a = Files.readAttributes(p, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
-              if (a.isRegularFile() && allowedByExt(p)) {
-                enqueue(p);
-                left--;
-              }
-            } catch (Exception ignore) {}
-          }
-        } catch (Exception ignore) {}
-      }
-    }, 0, 100, TimeUnit.MILLISECONDS);
+    int threads = Math.min(4, Runtime.getRuntime().availableProcessors());
+    registrar = new WatchRegistrar(watcher, threads, WatchRegistrar.defaultBudget(), unwatched::add);
+    for (Path r : roots) {
+      if (Files.isDirectory(r)) registrar.registerTree(r);
+    }
+
+    // watcher events are coalesced per path, then flushed in batches
+    watchThread = new Thread(this::watchLoop, "PassiveScanner-watch");
+    watchThread.setDaemon(true);
+    watchThread.start();
+    scheduler.scheduleWithFixedDelay(this::flushEvents, 250, 250, TimeUnit.MILLISECONDS);
+
+    // trickle crawl: resumable per-root cursors, paced by a token bucket at up to max-fps
+    for (Path r : roots) crawlers.add(db.read(cx -> TrickleCrawler.resume(cx, r, minPassSeconds)));
+    final RateLimiter budget = new RateLimiter(maxFilesPerSecond);
+    if (governor != null) governor.govern(budget, maxFilesPerSecond, 1);
+    scheduler.scheduleWithFixedDelay(() -> trickle(crawlers, budget), 0, 100, TimeUnit.MILLISECONDS);
+
+    scheduler.scheduleWithFixedDelay(this::reportMetrics, METRICS_EVERY_SECONDS, METRICS_EVERY_SECONDS, TimeUnit.SECONDS);
+  }
+
+  public Metrics metrics() {
+    return new Metrics(
+      registrar == null ? 0 : registrar.watched(), registrar == null ? 0 : registrar.unwatched(),
+      overflows.sum(), droppedEvents.sum(), events.eventsIn(), events.pathsOut());
   }
 
-  private void drainWatcher() {
-    try (PreparedStatement ps = cx.prepareStatement(
-      "insert into scan_queue(path,kind,not_before_unix,attempts) values (?,?,?,0) " +
-      "on conflict(path,kind) do update set not_before_unix=excluded.not_before_unix")) {
+  private void reportMetrics() {
+    Metrics m = metrics();
+    if (m.equals(lastReported)) return;
+    lastReported = m;
+    System.out.printf("Watcher: %,d dirs watched%s, %,d unwatched subtrees, %,d overflows (%,d events dropped), "
+        + "%,d events -> %,d paths%n",
+      m.watchedDirs(), registrar.busy() ? " (registering)" : "", m.unwatchedDirs(),
+      m.overflows(), m.droppedEvents(), m.events(), m.queuedPaths());
+  }
+
+  // Subtrees the registrar could not watch get their own resumable crawler, up to a cap
+  private void adoptUnwatched() {
+    Path dir;
+    while ((dir = unwatched.poll()) != null) {
+      if (fallbackCrawlers >= MAX_FALLBACK_CRAWLERS || roots.contains(dir)) continue;
+      try {
+        Path root = dir;
+        crawlers.add(db.read(cx -> TrickleCrawler.resume(cx, root, minPassSeconds)));
+        fallbackCrawlers++;
+      } catch (Exception ignore) {}
+    }
+  }
 
-      cx.setAutoCommit(false);
-      int pending = 0;
-      WatchKey key;
-      while ((key = watcher.poll()) != null) {
+  // One tick: takes files round-robin across roots while tokens last, then saves the cursors.
+  // A token is only spent on a file: crawlers between passes cost nothing.
+  private void trickle(List<TrickleCrawler> crawlers, RateLimiter budget) {
+    if (stop) return;
+    adoptUnwatched();
+    List<Path> changed = new ArrayList<>();
+    int idle = 0;   // crawlers in a row that returned no file this tick
+    for (int i = 0; idle < crawlers.size() && budget.available(); i = (i + 1) % crawlers.size()) {
+      TrickleCrawler.Found f = crawlers.get(i).next();
+      if (f == null) { idle++; continue; }
+      budget.tryAcquire();
+      idle = 0;
+      if (known == null || known.changed(f.path(), f.attrs())) changed.add(f.path());
+    }
+    if (changed.isEmpty() && crawlers.stream().noneMatch(TrickleCrawler::dirty)) return;
+    try {
+      long now = Instant.now().getEpochSecond();
+      db.write(cx -> {
+        if (!changed.isEmpty()) {
+          PreparedStatement ps = StatementCache.of(cx).get(DatabaseManager.ENQUEUE_SQL);
+          for (Path p : changed) {
+            ps.setString(1, p.toString());
+            ps.setString(2, "file");
+            ps.setLong(3, now);
+            ps.addBatch();
+          }
+          ps.executeBatch();
+        }
+        for (TrickleCrawler c : crawlers) c.save(cx);
+        return null;
+      });
+      if (!changed.isEmpty()) QueueSignal.global().signal();
+    } catch (Exception ignore) {
+    }
+  }
+
+  // Watcher thread: blocks on the WatchService and only records events; no stat, no DB
+  private void watchLoop() {
+    try {
+      while (!stop) {
+        WatchKey key = watcher.take();
         Path dir = (Path) key.watchable();
+        long now = System.nanoTime();
         for (WatchEvent<?> ev : key.pollEvents()) {
           var kind = ev.kind();
-          if (kind == StandardWatchEventKinds.OVERFLOW) continue;
-          Path child = dir.resolve((Path) ev.context());
-          try {
-            if (Files.isDirectory(child)) {
-              if (kind == StandardWatchEventKinds.ENTRY_CREATE) registerAll(child);
-              continue;
-            }
-            if (Files.isRegularFile(child) && allowedByExt(child)) {
-              ps.setString(1, child.toString());
-              ps.setString(2, "file");
-              ps.setLong(3, Instant.now().getEpochSecond());
-              ps.addBatch();
-              if (++pending >= 400) { ps.executeBatch(); cx.commit(); pending = 0; }
-            }
-          } catch (Exception ignore) {}
+          if (kind == StandardWatchEventKinds.OVERFLOW) {
+            // events for this directory were lost: list it again once things settle
+            overflows.increment();
+            droppedEvents.add(ev.count());
+            events.offer(dir, EventCoalescer.RESCAN, now);
+            continue;
+          }
+          int flag = kind == StandardWatchEventKinds.ENTRY_CREATE ? EventCoalescer.CREATED
+              : kind == StandardWatchEventKinds.ENTRY_DELETE ? EventCoalescer.DELETED
+              : EventCoalescer.MODIFIED;
+          events.offer(dir.resolve((Path) ev.context()), flag, now);
         }
-        key.reset();
+        if (!key.reset()) registrar.forget(dir);   // directory deleted or unmounted
       }
-      if (pending > 0) { ps.executeBatch(); cx.commit(); }
-    } catch (Exception ignore) {
-    } finally {
-      try { cx.setAutoCommit(true); } catch (Exception ignore) {}
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    } catch (ClosedWatchServiceException ignore) {
+    }
+  }
+
+  // A settled path with everything read from disk for it, so the write transaction does no I/O
+  private record Change(EventCoalescer.Settled event, BasicFileAttributes attrs,
+                        List<MoveTracker.Sample> samples, List<Path> rescanned) {}
+
+  // Scheduler thread: one stat and at most one queue row per settled path. Stats, directory
+  // samples and rescan listings are all taken before the write transaction, which holds the
+  // only writer; deletes are applied first so that a rename settling in the same flush finds
+  // the old rows already missing.
+  private void flushEvents() {
+    if (stop) return;
+    List<EventCoalescer.Settled> ready = events.drainSettled(System.nanoTime(), FLUSH_MAX);
+    if (ready.isEmpty()) return;
+    List<Change> changes = new ArrayList<>(ready.size());
+    for (EventCoalescer.Settled e : ready) changes.add(prepare(e));
+    List<MoveTracker.Moved> moved = new ArrayList<>();
+    try {
+      int queued = db.write(cx -> applyEvents(cx, changes, moved, Instant.now().getEpochSecond()));
+      if (queued > 0) QueueSignal.global().signal();
+      lastFlushError = null;
+    } catch (Exception e) {
+      // e.g. SQLITE_BUSY from another process: keep the paths for a later flush
+      events.retry(ready, System.nanoTime());
+      String msg = e.toString();
+      if (!msg.equals(lastFlushError)) {
+        System.out.println("Watcher: writing " + ready.size() + " changes failed, will retry: " + msg);
+        lastFlushError = msg;
+      }
+      return;
+    }
+    // committed: moved rows are known under their new path, so the trickle does not queue them
+    if (known != null) {
+      for (MoveTracker.Moved m : moved) {
+        known.remove(m.from());
+        known.put(m.to(), m.size(), m.mtime(), m.hashed());
+      }
+    }
+  }
+
+  private Change prepare(EventCoalescer.Settled e) {
+    BasicFileAttributes a;
+    try {
+      a = Files.readAttributes(e.path(), BasicFileAttributes.class);
+    } catch (IOException | RuntimeException gone) {
+      return new Change(e, null, null, null);
+    }
+    List<MoveTracker.Sample> samples = null;
+    List<Path> rescanned = null;
+    if (a.isDirectory()) {
+      if ((e.flags() & EventCoalescer.CREATED) != 0) {
+        registrar.registerTree(e.path());
+        samples = MoveTracker.sample(e.path());
+      }
+      if ((e.flags() & EventCoalescer.RESCAN) != 0) rescanned = rescan(e.path());
     }
+    return new Change(e, a, samples, rescanned);
   }
 
-  private boolean allowedByExt(Path p) {
-    String name = p.getFileName().toString();
-    int dot = name.lastIndexOf('.');
-    String ext = (dot >= 0 && dot < name.length()-1) ? name.substring(dot+1).toLowerCase() : "";
-    return ext.isEmpty() || IMAGE_EXT.contains(ext) || VIDEO_EXT.contains(ext) || DOC_EXT.contains(ext);
+  private int applyEvents(Connection cx, List<Change> changes, List<MoveTracker.Moved> moved,
+                          long now) throws SQLException {
+    MoveTracker moves = new MoveTracker(cx, moved);
+    for (Change c : changes) {
+      if (c.attrs() == null && (c.event().flags() & EventCoalescer.DELETED) != 0) moves.markMissing(c.event().path(), now);
+    }
+    int queued = 0;
+    for (Change c : changes) {
+      BasicFileAttributes a = c.attrs();
+      if (a == null) continue;
+      Path child = c.event().path();
+      boolean created = (c.event().flags() & EventCoalescer.CREATED) != 0;
+      if (a.isDirectory()) {
+        if (c.samples() != null) moves.moveDir(child, c.samples(), now);
+        if (c.rescanned() != null) {
+          for (Path p : c.rescanned()) enqueueChange(cx, p, now);
+          queued += c.rescanned().size();
+        }
+      } else if (a.isRegularFile() && PathFilter.active().acceptFile(child)) {
+        if (created && moves.moveFile(child, a, now)) continue;
+        enqueueChange(cx, child, now);
+        queued++;
+      }
+    }
+    if (queued > 0) {
+      StatementCache.of(cx).get(DatabaseManager.ENQUEUE_PRIORITY_SQL).executeBatch();
+      StatementCache.of(cx).get(DatabaseManager.REVIVE_SQL).executeBatch();
+    }
+    return queued;
   }
 
-  private void enqueue(Path p) {
-    long now = Instant.now().getEpochSecond();
-    try (PreparedStatement ps = cx.prepareStatement(
-      "insert into scan_queue(path,kind,not_before_unix,attempts) values (?,?,?,0) " +
-      "on conflict(path,kind) do update set not_before_unix=excluded.not_before_unix")) {
-      ps.setString(1, p.toString());
-      ps.setString(2, "file");
-      ps.setLong(3, now);
-      ps.executeUpdate();
-    } catch (Exception ignore) {}
+  // Watcher changes go ahead of crawl work and get another chance if they were dead-lettered
+  private void enqueueChange(Connection cx, Path p, long now) throws SQLException {
+    PreparedStatement ps = StatementCache.of(cx).get(DatabaseManager.ENQUEUE_PRIORITY_SQL);
+    ps.setString(1, p.toString());
+    ps.setString(2, "file");
+    ps.setLong(3, now);
+    ps.setInt(4, DatabaseManager.PRIORITY_INTERACTIVE);
+    ps.addBatch();
+    PreparedStatement revive = StatementCache.of(cx).get(DatabaseManager.REVIVE_SQL);
+    revive.setString(1, p.toString());
+    revive.setString(2, "file");
+    revive.addBatch();
   }
 
-  private void registerAll(Path start) throws IOException {
-    if (!Files.exists(start)) return;
-    Files.walkFileTree(start, Set.of(FileVisitOption.FOLLOW_LINKS), Integer.MAX_VALUE, new SimpleFileVisitor<>() {
-      @Override public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) {
-        String name = dir.getFileName() == null ? "" : dir.getFileName().toString().toLowerCase();
-        if (EXCLUDE_DIRS.contains(name)) return FileVisitResult.SKIP_SUBTREE;
+  // One level of an overflowed directory: returns the changed files to queue and registers
+  // subdirectories that are not watched yet (which covers ones created during the overflow)
+  private List<Path> rescan(Path dir) {
+    List<Path> changed = new ArrayList<>();
+    try (DirectoryStream<Path> ds = Files.newDirectoryStream(dir)) {
+      for (Path child : ds) {
+        BasicFileAttributes a;
         try {
-          dir.register(watcher,
-            new WatchEvent.Kind<?>[]{ StandardWatchEventKinds.ENTRY_CREATE,
-                                      StandardWatchEventKinds.ENTRY_MODIFY,
-                                      StandardWatchEventKinds.ENTRY_DELETE });
-        } catch (Exception ignore) {}
-        return FileVisitResult.CONTINUE;
+          a = Files.readAttributes(child, BasicFileAttributes.class);
+        } catch (IOException | RuntimeException gone) {
+          continue;
+        }
+        if (a.isDirectory()) {
+          registrar.registerTree(child);
+        } else if (a.isRegularFile() && PathFilter.active().acceptFile(child)
+            && (known == null || known.changed(child, a))) {
+          changed.add(child);
+        }
       }
-    });
+    } catch (IOException | RuntimeException ignore) {
+    }
+    return changed;
   }
 
   @Override public void close() {
     stop = true;
     scheduler.shutdownNow();
     try { if (watcher != null) watcher.close(); } catch (Exception ignore) {}
+    if (watchThread != null) watchThread.interrupt();
+    if (registrar != null) registrar.close();
   }
 }
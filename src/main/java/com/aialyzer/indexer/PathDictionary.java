@@ -0,0 +1,147 @@
+package com.aialyzer.indexer;
+
+import java.io.File;
+import java.nio.file.Path;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Interned directories. A files row stores dir_id and its name instead of the full path, so a
+// prefix shared by thousands of files is stored and indexed once. A directory key is the
+// directory path with a trailing separator, so path = dirs.path || files.name, and the keys
+// of a directory and everything below it fall in [key, key with the separator bumped by one).
+// One dictionary per connection, like StatementCache, with the same one-thread-at-a-time rule
+// and the same lifetime: DatabasePool.close() drops it with closed().
+// Lookups are cached. The cache is dropped when a transaction on the connection rolls back
+// (ids it interned are gone), and in every dictionary of this process once a transaction that
+// rewrote directory keys (MoveTracker) commits.
+public final class PathDictionary {
+  private static final Map<Connection, PathDictionary> DICTS = Collections.synchronizedMap(new HashMap<>());
+  private static final AtomicLong RENAMES = new AtomicLong();
+  private static final int CACHE_SIZE = 8192;
+  private static final char SEP = File.separatorChar;
+
+  private static final String FIND_SQL = "select id from dirs where path=?";
+  private static final String INSERT_SQL = "insert or ignore into dirs(path) values (?)";
+  private static final String FILE_ID_SQL = "select id from files where dir_id=? and name=?";
+  private static final String PATH_SQL =
+    "select d.path||f.name from files f join dirs d on d.id=f.dir_id where f.id=?";
+
+  private final Connection cx;
+  private final Map<String, Long> ids = new LinkedHashMap<>(256, 0.75f, true) {
+    @Override protected boolean removeEldestEntry(Map.Entry<String, Long> e) {
+      return size() > CACHE_SIZE;
+    }
+  };
+  private long renamesSeen = RENAMES.get();
+  private boolean renamePending;
+
+  private PathDictionary(Connection cx) {
+    this.cx = cx;
+  }
+
+  public static PathDictionary of(Connection cx) {
+    return DICTS.computeIfAbsent(cx, PathDictionary::new);
+  }
+
+  // Id of the directory key, adding it when new; must run inside a write transaction
+  public long intern(String dirKey) throws SQLException {
+    long id = find(dirKey);
+    if (id >= 0) return id;
+    PreparedStatement ins = StatementCache.of(cx).get(INSERT_SQL);
+    ins.setString(1, dirKey);
+    ins.executeUpdate();
+    id = query(dirKey);
+    ids.put(dirKey, id);
+    return id;
+  }
+
+  // Id of the directory key, or -1 when no file was ever stored under it
+  public long find(String dirKey) throws SQLException {
+    if (renamesSeen != RENAMES.get()) {
+      renamesSeen = RENAMES.get();
+      ids.clear();
+    }
+    Long cached = ids.get(dirKey);
+    if (cached != null) return cached;
+    long id = query(dirKey);
+    if (id >= 0) ids.put(dirKey, id);
+    return id;
+  }
+
+  // files.id for a full path, or -1
+  public long fileId(String path) throws SQLException {
+    long dir = find(dirOf(path));
+    if (dir < 0) return -1;
+    PreparedStatement ps = StatementCache.of(cx).get(FILE_ID_SQL);
+    ps.setLong(1, dir);
+    ps.setString(2, nameOf(path));
+    try (ResultSet rs = ps.executeQuery()) {
+      return rs.next() ? rs.getLong(1) : -1;
+    }
+  }
+
+  // Full path of a files row, or null
+  public String path(long fileId) throws SQLException {
+    PreparedStatement ps = StatementCache.of(cx).get(PATH_SQL);
+    ps.setLong(1, fileId);
+    try (ResultSet rs = ps.executeQuery()) {
+      return rs.next() ? rs.getString(1) : null;
+    }
+  }
+
+  private long query(String dirKey) throws SQLException {
+    PreparedStatement ps = StatementCache.of(cx).get(FIND_SQL);
+    ps.setString(1, dirKey);
+    try (ResultSet rs = ps.executeQuery()) {
+      return rs.next() ? rs.getLong(1) : -1;
+    }
+  }
+
+  // "/a/b/c.jpg" -> "/a/b/"; "" for a bare name
+  public static String dirOf(String path) {
+    return path.substring(0, path.lastIndexOf(SEP) + 1);
+  }
+
+  // "/a/b/c.jpg" -> "c.jpg"
+  public static String nameOf(String path) {
+    return path.substring(path.lastIndexOf(SEP) + 1);
+  }
+
+  // "/a/b" -> "/a/b/"; roots already end with the separator
+  public static String dirKey(Path dir) {
+    String d = dir.toString();
+    return d.isEmpty() || d.charAt(d.length() - 1) == SEP ? d : d + SEP;
+  }
+
+  // Exclusive upper bound of the keys under dirKey (dirKey itself included)
+  public static String subtreeEnd(String dirKey) {
+    return dirKey.substring(0, dirKey.length() - 1) + (char) (SEP + 1);
+  }
+
+  // Directory keys were rewritten in the current transaction
+  void renamed() {
+    ids.clear();
+    renamePending = true;
+  }
+
+  // Called by DatabasePool before it closes cx
+  static void closed(Connection cx) {
+    DICTS.remove(cx);
+  }
+
+  // Called by DatabasePool when a write transaction on cx ends
+  static void transactionEnded(Connection cx, boolean committed) {
+    PathDictionary d = DICTS.get(cx);
+    if (d == null) return;
+    if (!committed) d.ids.clear();
+    else if (d.renamePending) RENAMES.incrementAndGet();
+    d.renamePending = false;
+  }
+}
@@ -0,0 +1,91 @@
+package com.aialyzer.indexer;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.Locale;
+
+// Which directories the scanners descend into and which files they pick up. Every check runs on
+// the path's string form (cached by the Path) and allocates nothing: directory names are
+// compared in place, ignoring case, and extensions go through FileType's packed keys.
+// One filter is active per process; Main installs the one built from the command line.
+public final class PathFilter {
+  public static final List<String> DEFAULT_EXCLUDED_DIRS = List.of("$recycle.bin", "node_modules", ".git");
+
+  private static volatile PathFilter active = new PathFilter(null, DEFAULT_EXCLUDED_DIRS);
+
+  private final long[] includeKeys;      // sorted; null = FileType's table; empty + allFiles = everything
+  private final boolean allFiles;
+  private final String[] excludedDirs;   // lower case
+
+  // includeExt: extensions without the dot, "*" for every file, null for the known media/doc types
+  public PathFilter(Collection<String> includeExt, Collection<String> excludedDirs) {
+    if (includeExt == null) {
+      this.includeKeys = null;
+      this.allFiles = false;
+    } else {
+      List<Long> keys = new ArrayList<>();
+      boolean all = false;
+      for (String e : includeExt) {
+        String ext = e.trim();
+        if (ext.startsWith(".")) ext = ext.substring(1);
+        if (ext.equals("*")) all = true;
+        else if (!ext.isEmpty()) {
+          long key = FileType.extKey("." + ext);
+          if (key == -1) throw new IllegalArgumentException("Extension too long or not ASCII: " + e);
+          keys.add(key);
+        }
+      }
+      this.includeKeys = keys.stream().mapToLong(Long::longValue).sorted().distinct().toArray();
+      this.allFiles = all;
+    }
+    this.excludedDirs = excludedDirs.stream()
+        .map(d -> d.trim().toLowerCase(Locale.ROOT))
+        .filter(d -> !d.isEmpty())
+        .distinct()
+        .toArray(String[]::new);
+  }
+
+  public static PathFilter active() {
+    return active;
+  }
+
+  public static void install(PathFilter filter) {
+    active = filter;
+  }
+
+  // True when the directory's subtree should be walked
+  public boolean acceptDir(Path dir) {
+    return acceptDir(dir.toString());
+  }
+
+  public boolean acceptDir(String dir) {
+    int end = dir.length();
+    while (end > 1 && isSeparator(dir.charAt(end - 1))) end--;
+    int start = end;
+    while (start > 0 && !isSeparator(dir.charAt(start - 1))) start--;
+    int len = end - start;
+    for (String name : excludedDirs) {
+      if (name.length() == len && dir.regionMatches(true, start, name, 0, len)) return false;
+    }
+    return true;
+  }
+
+  // Files without an extension are kept; otherwise the extension must be included
+  public boolean acceptFile(Path file) {
+    return acceptFile(file.toString());
+  }
+
+  public boolean acceptFile(String file) {
+    if (allFiles) return true;
+    if (includeKeys == null) return FileType.isWanted(file);
+    long key = FileType.extKey(file);
+    return key == 0 || (key != -1 && Arrays.binarySearch(includeKeys, key) >= 0);
+  }
+
+  private static boolean isSeparator(char c) {
+    return c == '/' || c == '\\';
+  }
+}
@@ -0,0 +1,36 @@
+package com.aialyzer.indexer;
+
+// In-process doorbell between the code that commits scan_queue rows and the worker. Enqueuers
+// ring it after their commit; the worker notes the version before it looks for work and, when
+// it found none, waits for the version to move (or for its own timeout). Reading the version
+// first means a ring between the empty claim and the wait is never lost.
+// Other processes sharing the database cannot ring it; the worker's timeout covers them.
+public final class QueueSignal {
+  private static final QueueSignal GLOBAL = new QueueSignal();
+
+  private long version;
+
+  public static QueueSignal global() {
+    return GLOBAL;
+  }
+
+  public synchronized void signal() {
+    version++;
+    notifyAll();
+  }
+
+  public synchronized long version() {
+    return version;
+  }
+
+  // True when signalled after 'seen' was read; false on timeout
+  public synchronized boolean await(long seen, long timeoutMillis) throws InterruptedException {
+    long deadline = System.nanoTime() + timeoutMillis * 1_000_000L;
+    while (version == seen) {
+      long left = (deadline - System.nanoTime()) / 1_000_000L;
+      if (left <= 0) return false;
+      wait(left);
+    }
+    return true;
+  }
+}
@@ -0,0 +1,58 @@
+package com.aialyzer.indexer;
+
+// Token bucket: refills at a fixed rate and holds at most a fifth of a second of tokens,
+// so the long-run rate never exceeds the configured one even when callers tick late.
+public final class RateLimiter {
+  private double perSecond;
+  private double tokens;
+  private long lastNanos = System.nanoTime();
+
+  public RateLimiter(double perSecond) {
+    setRate(perSecond);
+  }
+
+  public synchronized void setRate(double perSecond) {
+    refill();
+    this.perSecond = Math.max(0.1, perSecond);
+  }
+
+  public synchronized double rate() {
+    return perSecond;
+  }
+
+  public synchronized boolean tryAcquire() {
+    refill();
+    if (tokens < 1) return false;
+    tokens -= 1;
+    return true;
+  }
+
+  // True when tryAcquire would succeed now; takes nothing
+  public synchronized boolean available() {
+    refill();
+    return tokens >= 1;
+  }
+
+  // Blocks until a token is available
+  public void acquire() throws InterruptedException {
+    while (true) {
+      long waitNanos;
+      synchronized (this) {
+        refill();
+        if (tokens >= 1) {
+          tokens -= 1;
+          return;
+        }
+        waitNanos = (long) ((1 - tokens) / perSecond * 1e9);
+      }
+      Thread.sleep(Math.max(1, waitNanos / 1_000_000));
+    }
+  }
+
+  private void refill() {
+    long now = System.nanoTime();
+    double capacity = Math.max(1, perSecond / 5);
+    tokens = Math.min(capacity, tokens + (now - lastNanos) / 1e9 * perSecond);
+    lastNanos = now;
+  }
+}
@@ -0,0 +1,47 @@
+package com.aialyzer.indexer;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+// Prepared statements compiled once per connection and reused for its lifetime.
+// Like the connection itself, a cache must only be used by one thread at a time.
+// Cached statements are closed by DatabasePool.close() before their connection; callers must
+// not close them. The map is a plain one (a weak map would never let go: each cache holds its
+// connection), so a connection's entry lives until closed() drops it.
+public final class StatementCache {
+  private static final Map<Connection, StatementCache> CACHES = Collections.synchronizedMap(new HashMap<>());
+
+  private final Connection cx;
+  private final Map<String, PreparedStatement> bySql = new HashMap<>();
+
+  private StatementCache(Connection cx) {
+    this.cx = cx;
+  }
+
+  public static StatementCache of(Connection cx) {
+    return CACHES.computeIfAbsent(cx, StatementCache::new);
+  }
+
+  // Called by DatabasePool before it closes cx
+  static void closed(Connection cx) {
+    StatementCache c = CACHES.remove(cx);
+    if (c == null) return;
+    for (PreparedStatement ps : c.bySql.values()) {
+      try { ps.close(); } catch (SQLException ignore) {}
+    }
+    c.bySql.clear();
+  }
+
+  public PreparedStatement get(String sql) throws SQLException {
+    PreparedStatement ps = bySql.get(sql);
+    if (ps == null || ps.isClosed()) {
+      ps = cx.prepareStatement(sql);
+      bySql.put(sql, ps);
+    }
+    return ps;
+  }
+}
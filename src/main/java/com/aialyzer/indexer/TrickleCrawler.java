@@ -0,0 +1,183 @@
+package com.aialyzer.indexer;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.time.Instant;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.List;
+import java.util.Objects;
+
+// Resumable depth-first crawl of one root for the passive trickle. Entries are visited in
+// sorted name order, so the last file returned is enough to rebuild the position; it is
+// stored in crawl_cursor and a restart continues right after it.
+// A new pass starts no sooner than minPassSeconds after the previous one began, so a small
+// tree is not re-read (and re-queued) over and over.
+final class TrickleCrawler {
+  record Found(Path path, BasicFileAttributes attrs) {}
+
+  private static final class Frame {
+    final Path dir;
+    final Object key;        // fileKey, to stop link cycles
+    final String[] names;
+    int next;
+
+    Frame(Path dir, Object key, String[] names, int next) {
+      this.dir = dir; this.key = key; this.names = names; this.next = next;
+    }
+  }
+
+  private final Path root;
+  private final long minPassSeconds;
+  private final Deque<Frame> stack = new ArrayDeque<>();
+  private String cursor;              // last file returned, null at the start of a pass
+  private long passStartedUnix;     // start of the current pass, or of the last one between passes
+  private long nextPassUnix;        // between passes: earliest start of the next one
+  private long passes;
+  private long passFiles;
+  private boolean dirty;
+
+  private TrickleCrawler(Path root, long minPassSeconds, String cursor, long passStartedUnix, long passes) {
+    this.root = root;
+    this.minPassSeconds = minPassSeconds;
+    this.cursor = cursor;
+    this.passStartedUnix = passStartedUnix;
+    this.passes = passes;
+    if (cursor == null && passes > 0) nextPassUnix = passStartedUnix + minPassSeconds;
+  }
+
+  static TrickleCrawler resume(Connection cx, Path root, long minPassSeconds) throws SQLException {
+    PreparedStatement ps = StatementCache.of(cx).get(
+      "select cursor_path,pass_started_unix,passes from crawl_cursor where root=?");
+    ps.setString(1, root.toString());
+    try (ResultSet rs = ps.executeQuery()) {
+      if (rs.next()) return new TrickleCrawler(root, minPassSeconds, rs.getString(1), rs.getLong(2), rs.getLong(3));
+    }
+    return new TrickleCrawler(root, minPassSeconds, null, Instant.now().getEpochSecond(), 0);
+  }
+
+  boolean dirty() {
+    return dirty;
+  }
+
+  // Writes the cursor if it moved since the last save; runs in the caller's transaction
+  void save(Connection cx) throws SQLException {
+    if (!dirty) return;
+    PreparedStatement ps = StatementCache.of(cx).get(
+      "insert into crawl_cursor(root,cursor_path,pass_started_unix,passes) values (?,?,?,?) " +
+      "on conflict(root) do update set cursor_path=excluded.cursor_path, " +
+      "pass_started_unix=excluded.pass_started_unix, passes=excluded.passes");
+    ps.setString(1, root.toString());
+    ps.setString(2, cursor);
+    ps.setLong(3, passStartedUnix);
+    ps.setLong(4, passes);
+    ps.executeUpdate();
+    dirty = false;
+  }
+
+  // Next wanted file in crawl order, or null once a full pass has finished (the next call starts
+  // over) and while the next pass is not due yet
+  Found next() {
+    if (stack.isEmpty()) {
+      if (cursor == null && Instant.now().getEpochSecond() < nextPassUnix) return null;
+      start();
+    }
+    while (!stack.isEmpty()) {
+      Frame f = stack.peek();
+      if (f.next >= f.names.length) {
+        stack.pop();
+        continue;
+      }
+      Path p = f.dir.resolve(f.names[f.next++]);
+      BasicFileAttributes a;
+      try {
+        a = Files.readAttributes(p, BasicFileAttributes.class);
+      } catch (IOException | RuntimeException e) {
+        continue;
+      }
+      if (a.isDirectory()) {
+        if (PathFilter.active().acceptDir(p) && !onStack(a.fileKey())) {
+          stack.push(new Frame(p, a.fileKey(), list(p), 0));
+        }
+      } else if (a.isRegularFile() && PathFilter.active().acceptFile(p)) {
+        cursor = p.toString();
+        passFiles++;
+        dirty = true;
+        return new Found(p, a);
+      }
+    }
+    finishPass();
+    return null;
+  }
+
+  private void start() {
+    if (cursor == null && passFiles == 0) {
+      passStartedUnix = Instant.now().getEpochSecond();
+      dirty = true;
+    }
+    List<String> parts = new ArrayList<>();
+    if (cursor != null) {
+      Path c = Paths.get(cursor);
+      if (c.startsWith(root)) {
+        for (Path part : root.relativize(c)) parts.add(part.toString());
+      }
+    }
+    stack.push(new Frame(root, null, list(root), 0));
+    // rebuild the frames down to the cursor, each one positioned just after the cursor's component
+    Path dir = root;
+    for (int i = 0; i < parts.size(); i++) {
+      Frame f = stack.peek();
+      f.next = after(f.names, parts.get(i));
+      if (i == parts.size() - 1) break;
+      dir = dir.resolve(parts.get(i));
+      if (!Files.isDirectory(dir)) break;
+      stack.push(new Frame(dir, null, list(dir), 0));
+    }
+  }
+
+  private void finishPass() {
+    long now = Instant.now().getEpochSecond();
+    nextPassUnix = passStartedUnix + minPassSeconds;
+    if (passFiles == 0 && cursor == null) return;   // nothing to crawl yet
+    passes++;
+    System.out.println("Trickle pass " + passes + " over " + root + " done: "
+      + passFiles + " files in " + (now - passStartedUnix) + "s");
+    passFiles = 0;
+    cursor = null;
+    dirty = true;
+  }
+
+  private boolean onStack(Object key) {
+    if (key == null) return false;
+    for (Frame f : stack) {
+      if (Objects.equals(f.key, key)) return true;
+    }
+    return false;
+  }
+
+  private static int after(String[] names, String name) {
+    int i = Arrays.binarySearch(names, name);
+    return i >= 0 ? i + 1 : -i - 1;
+  }
+
+  private static String[] list(Path dir) {
+    List<String> names = new ArrayList<>();
+    try (DirectoryStream<Path> ds = Files.newDirectoryStream(dir)) {
+      for (Path p : ds) names.add(p.getFileName().toString());
+    } catch (IOException | RuntimeException ignore) {
+    }
+    String[] a = names.toArray(new String[0]);
+    Arrays.sort(a);
+    return a;
+  }
+}
@@ -0,0 +1,166 @@
+package com.aialyzer.indexer;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileSystemException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+// Registers directory trees with the WatchService in the background, one task per directory on
+// a small pool, so startup does not wait for the whole tree. Registration stops at a budget
+// (a share of the inotify limit on Linux); a subtree that cannot be watched, for the budget or
+// because register failed, is handed to the onUnwatched callback instead.
+final class WatchRegistrar implements AutoCloseable {
+  private static final WatchEvent.Kind<?>[] KINDS = {
+    StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY, StandardWatchEventKinds.ENTRY_DELETE
+  };
+  private static final Path INOTIFY_LIMIT = Paths.get("/proc/sys/fs/inotify/max_user_watches");
+
+  private final WatchService watcher;
+  private final ExecutorService pool;
+  private final Consumer<Path> onUnwatched;
+  private volatile int budget;
+  private final Map<Path, Object> watched = new ConcurrentHashMap<>();   // dir -> fileKey
+  private final Set<Object> watchedKeys = ConcurrentHashMap.newKeySet();  // stops link cycles
+  private final AtomicInteger slots = new AtomicInteger();               // watches in use or being added
+  private final AtomicInteger unwatched = new AtomicInteger();
+  private final AtomicInteger inFlight = new AtomicInteger();
+
+  WatchRegistrar(WatchService watcher, int threads, int budget, Consumer<Path> onUnwatched) {
+    this.watcher = watcher;
+    this.budget = budget;
+    this.onUnwatched = onUnwatched;
+    AtomicInteger n = new AtomicInteger();
+    this.pool = Executors.newFixedThreadPool(Math.max(1, threads), r -> {
+      Thread t = new Thread(r, "WatchRegistrar-" + n.incrementAndGet());
+      t.setDaemon(true);
+      return t;
+    });
+  }
+
+  // Most of the per-user inotify limit, leaving room for other programs; unbounded elsewhere
+  static int defaultBudget() {
+    try {
+      long limit = Long.parseLong(Files.readString(INOTIFY_LIMIT).trim());
+      return (int) Math.min(Integer.MAX_VALUE, limit * 4 / 5);
+    } catch (IOException | RuntimeException e) {
+      return Integer.MAX_VALUE;
+    }
+  }
+
+  // Starts registering the tree under dir; returns at once
+  void registerTree(Path dir) {
+    submit(dir);
+  }
+
+  // The directory is gone (its key was cancelled)
+  void forget(Path dir) {
+    Object key = watched.remove(dir);
+    if (key != null) {
+      watchedKeys.remove(key);
+      slots.decrementAndGet();
+    }
+  }
+
+  int watched() {
+    return watched.size();
+  }
+
+  int unwatched() {
+    return unwatched.get();
+  }
+
+  // True while registration tasks are still queued or running
+  boolean busy() {
+    return inFlight.get() > 0;
+  }
+
+  private void submit(Path dir) {
+    inFlight.incrementAndGet();
+    try {
+      pool.execute(() -> {
+        try {
+          register(dir);
+        } finally {
+          inFlight.decrementAndGet();
+        }
+      });
+    } catch (RejectedExecutionException closed) {
+      inFlight.decrementAndGet();
+    }
+  }
+
+  // The JDK reports inotify's ENOSPC as "User limit of inotify watches reached"
+  private static boolean watchLimitReached(IOException e) {
+    if (e instanceof FileSystemException) return false;   // NoSuchFile, AccessDenied, ...
+    String msg = e.getMessage();
+    return msg != null && (msg.contains("inotify watches") || msg.contains("No space left"));
+  }
+
+  private void register(Path dir) {
+    if (!PathFilter.active().acceptDir(dir) || watched.containsKey(dir)) return;
+    BasicFileAttributes a;
+    try {
+      a = Files.readAttributes(dir, BasicFileAttributes.class);
+    } catch (IOException | RuntimeException e) {
+      return;
+    }
+    Object key = a.fileKey();
+    if (!a.isDirectory() || (key != null && !watchedKeys.add(key))) return;
+    if (slots.incrementAndGet() > budget) {
+      slots.decrementAndGet();
+      giveUp(dir, key);
+      return;
+    }
+    try {
+      dir.register(watcher, KINDS);
+    } catch (IOException e) {
+      if (watchLimitReached(e)) {
+        // the OS limit is lower than we assumed (other watchers share it): stop here
+        budget = slots.decrementAndGet();
+        giveUp(dir, key);
+        return;
+      }
+      // deleted during the walk or unreadable: skip it, the budget is unchanged
+      slots.decrementAndGet();
+      if (key != null) watchedKeys.remove(key);
+      return;
+    } catch (RuntimeException e) {
+      slots.decrementAndGet();
+      if (key != null) watchedKeys.remove(key);
+      return;
+    }
+    watched.put(dir, key == null ? dir : key);
+
+    try (DirectoryStream<Path> ds = Files.newDirectoryStream(dir)) {
+      for (Path child : ds) {
+        if (Files.isDirectory(child)) submit(child);
+      }
+    } catch (IOException | RuntimeException ignore) {
+      // unreadable listing: the directory itself is still watched
+    }
+  }
+
+  private void giveUp(Path dir, Object key) {
+    if (key != null) watchedKeys.remove(key);
+    unwatched.incrementAndGet();
+    onUnwatched.accept(dir);
+  }
+
+  @Override public void close() {
+    pool.shutdownNow();
+  }
+}
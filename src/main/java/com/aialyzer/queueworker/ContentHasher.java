@@ -0,0 +1,160 @@
+package com.aialyzer.queueworker;
+
+import com.aialyzer.indexer.FastHash;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.util.HexFormat;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+// Content fingerprints: the quick head/tail hash, and SHA-256 without the 8KB stream copy loop.
+//  - small files: one read into a direct buffer sized to the file
+//  - larger files: two direct buffers, the next one is filled on a reader thread while the
+//    current one is digested
+// No memory mapping: indexed files can be truncated while we hash them, and a mapped read past
+// the new end is a SIGBUS (InternalError) instead of an IOException.
+final class ContentHasher {
+  static final int SMALL_LIMIT = 256 * 1024;
+  private static final int BUFFER_SIZE = 1024 * 1024;
+  // head and tail bytes that go into the quick fingerprint
+  static final int QUICK_BLOCK = 64 * 1024;
+
+  private static final ExecutorService READER = Executors.newCachedThreadPool(r -> {
+    Thread t = new Thread(r, "ContentHasher-read");
+    t.setDaemon(true);
+    return t;
+  });
+
+  // per thread so the direct memory is allocated once per worker
+  private static final ThreadLocal<ByteBuffer[]> BUFFERS = ThreadLocal.withInitial(() -> new ByteBuffer[] {
+    ByteBuffer.allocateDirect(BUFFER_SIZE), ByteBuffer.allocateDirect(BUFFER_SIZE)
+  });
+
+  private ContentHasher() {}
+
+  static String sha256(Path p, long maxBytes) throws IOException {
+    try (FileChannel ch = FileChannel.open(p, StandardOpenOption.READ)) {
+      return sha256(ch, maxBytes);
+    }
+  }
+
+  // First tier of duplicate detection: XXH64 of the first and last QUICK_BLOCK bytes (the whole
+  // file when it is smaller than two blocks). Together with the size it keys files that might be
+  // equal; only those get a full sha256.
+  static long quickHash(FileChannel ch) throws IOException {
+    long size = ch.size();
+    ByteBuffer buf = BUFFERS.get()[0];
+    buf.clear();
+    if (size <= 2L * QUICK_BLOCK) {
+      fill(ch, buf, 0, size);
+      buf.flip();
+    } else {
+      buf.limit(QUICK_BLOCK);
+      fill(ch, buf.slice(), 0, QUICK_BLOCK);
+      buf.limit(2 * QUICK_BLOCK).position(QUICK_BLOCK);
+      fill(ch, buf.slice(), size - QUICK_BLOCK, size);
+      buf.position(0);
+    }
+    return FastHash.xxh64(buf, 0);
+  }
+
+  // Same fingerprint as quickHash(FileChannel), but the head block comes from the window's
+  // cached head instead of a second read
+  static long quickHash(FileWindow w) throws IOException {
+    long size = w.size();
+    ByteBuffer head = w.head();
+    ByteBuffer buf = BUFFERS.get()[0];
+    buf.clear();
+    if (size <= 2L * QUICK_BLOCK) {
+      buf.put(head);
+      if (buf.position() < size) {
+        buf.limit((int) size);
+        fill(w.channel(), buf.slice(), buf.position(), size);
+      }
+      buf.position(0).limit((int) size);
+    } else {
+      buf.put(head.limit(QUICK_BLOCK));
+      buf.limit(2 * QUICK_BLOCK);
+      fill(w.channel(), buf.slice(), size - QUICK_BLOCK, size);
+      buf.position(0);
+    }
+    return FastHash.xxh64(buf, 0);
+  }
+
+  static String sha256(FileChannel ch, long maxBytes) throws IOException {
+    MessageDigest md = newSha256();
+    long len = Math.min(ch.size(), maxBytes);
+    if (len > SMALL_LIMIT) digestDoubleBuffered(ch, len, md);
+    else digestSmall(ch, len, md);
+    return HexFormat.of().formatHex(md.digest());
+  }
+
+  private static void digestSmall(FileChannel ch, long len, MessageDigest md) throws IOException {
+    ByteBuffer buf = BUFFERS.get()[0];
+    buf.clear().limit((int) len);
+    long pos = 0;
+    while (buf.hasRemaining()) {
+      int r = ch.read(buf, pos);
+      if (r < 0) break;
+      pos += r;
+    }
+    md.update(buf.flip());
+  }
+
+  private static void digestDoubleBuffered(FileChannel ch, long len, MessageDigest md) throws IOException {
+    ByteBuffer[] bufs = BUFFERS.get();
+    int cur = 0;
+    long pos = 0;
+    int n = fill(ch, bufs[cur], pos, len);
+    while (n > 0) {
+      pos += n;
+      final ByteBuffer nextBuf = bufs[cur ^ 1];
+      final long nextPos = pos;
+      Future<Integer> next = pos < len ? READER.submit(() -> fill(ch, nextBuf, nextPos, len)) : null;
+      md.update(bufs[cur].flip());
+      if (next == null) break;
+      n = await(next);
+      cur ^= 1;
+    }
+  }
+
+  // Reads from pos until the buffer is full or len is reached; returns the bytes read
+  private static int fill(FileChannel ch, ByteBuffer buf, long pos, long len) throws IOException {
+    buf.clear();
+    if (len - pos < buf.capacity()) buf.limit((int) (len - pos));
+    int total = 0;
+    while (buf.hasRemaining()) {
+      int r = ch.read(buf, pos + total);
+      if (r < 0) break;
+      total += r;
+    }
+    return total;
+  }
+
+  private static <T> T await(Future<T> f) throws IOException {
+    try {
+      return f.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException("Interrupted while hashing", e);
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof IOException io) throw io;
+      throw new IOException(e.getCause());
+    }
+  }
+
+  private static MessageDigest newSha256() throws IOException {
+    try {
+      return MessageDigest.getInstance("SHA-256");
+    } catch (Exception e) {
+      throw new IOException("SHA-256 not available", e);
+    }
+  }
+}
@@ -0,0 +1,252 @@
+package com.aialyzer.queueworker;
+
+import java.io.IOException;
+import java.nio.ByteOrder;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+
+// Date taken and camera make/model from the EXIF TIFF block, located without decoding:
+// JPEG APP1, TIFF/raw at offset 0, PNG eXIf, WebP EXIF chunk, HEIF 'Exif' item.
+// Reads go through the same FileWindow as ImageProber, so the usual case stays inside the
+// cached head of the file.
+final class ExifReader {
+  record Exif(Long takenUnix, String make, String model) {}
+
+  private static final int MAX_SEGMENTS = 512;
+  private static final int MAX_ASCII = 256;
+  private static final DateTimeFormatter EXIF_DATE = DateTimeFormatter.ofPattern("yyyy:MM:dd HH:mm:ss");
+
+  private static final int TAG_MAKE = 0x010F;
+  private static final int TAG_MODEL = 0x0110;
+  private static final int TAG_DATETIME = 0x0132;
+  private static final int TAG_EXIF_IFD = 0x8769;
+  private static final int TAG_DATETIME_ORIGINAL = 0x9003;
+  private static final int TAG_DATETIME_DIGITIZED = 0x9004;
+  private static final int TAG_OFFSET_TIME_ORIGINAL = 0x9011;
+
+  private ExifReader() {}
+
+  // Null when the file has no readable EXIF block
+  static Exif read(FileWindow w) {
+    try {
+      long tiff = locateTiff(w);
+      return tiff < 0 ? null : parseTiff(w, tiff);
+    } catch (IOException | RuntimeException e) {
+      return null;
+    }
+  }
+
+  private static long locateTiff(FileWindow w) throws IOException {
+    if (w.u8(0) == 0xFF && w.u8(1) == 0xD8) return jpegApp1(w);
+    if (w.matches(0, "II*\0") || w.matches(0, "MM\0*")) return 0;
+    if (w.matches(0, "\u0089PNG\r\n\u001a\n")) return pngExif(w);
+    if (w.matches(0, "RIFF") && w.matches(8, "WEBP")) return webpExif(w);
+    if (w.matches(4, "ftyp")) return heifExif(w);
+    return -1;
+  }
+
+  private static long jpegApp1(FileWindow w) throws IOException {
+    w.order(ByteOrder.BIG_ENDIAN);
+    long pos = 2;
+    for (int i = 0; i < MAX_SEGMENTS; i++) {
+      if (w.u8(pos) != 0xFF) return -1;
+      int m = w.u8(pos + 1);
+      if (m == 0xFF) { pos++; continue; }
+      if (m == 0x01 || (m >= 0xD0 && m <= 0xD7)) { pos += 2; continue; }
+      if (m == 0xD9 || m == 0xDA) return -1;
+      int len = w.u16(pos + 2);
+      if (m == 0xE1 && w.matches(pos + 4, "Exif\0\0")) return pos + 10;
+      pos += 2 + len;
+    }
+    return -1;
+  }
+
+  private static long pngExif(FileWindow w) throws IOException {
+    w.order(ByteOrder.BIG_ENDIAN);
+    long pos = 8;
+    for (int i = 0; i < MAX_SEGMENTS && pos + 8 <= w.size(); i++) {
+      long len = w.u32(pos);
+      if (w.matches(pos + 4, "eXIf")) return pos + 8;
+      if (w.matches(pos + 4, "IDAT") || w.matches(pos + 4, "IEND")) return -1;
+      pos += 12 + len;
+    }
+    return -1;
+  }
+
+  private static long webpExif(FileWindow w) throws IOException {
+    w.order(ByteOrder.LITTLE_ENDIAN);
+    long pos = 12;
+    for (int i = 0; i < MAX_SEGMENTS && pos + 8 <= w.size(); i++) {
+      long len = w.u32(pos + 4);
+      if (w.matches(pos, "EXIF")) {
+        return w.matches(pos + 8, "Exif\0\0") ? pos + 14 : pos + 8;
+      }
+      pos += 8 + len + (len & 1);
+    }
+    return -1;
+  }
+
+  // meta/iinf names the 'Exif' item, meta/iloc says where its bytes are
+  private static long heifExif(FileWindow w) throws IOException {
+    w.order(ByteOrder.BIG_ENDIAN);
+    long meta = findBox(w, 0, w.size(), "meta");
+    if (meta < 0) return -1;
+    long metaEnd = meta + w.u32(meta);
+    long children = meta + 12;
+    long iinf = findBox(w, children, metaEnd, "iinf");
+    long iloc = findBox(w, children, metaEnd, "iloc");
+    if (iinf < 0 || iloc < 0) return -1;
+
+    long itemId = exifItemId(w, iinf);
+    if (itemId < 0) return -1;
+    long at = itemOffset(w, iloc, itemId);
+    if (at < 0) return -1;
+    // Exif item: 4-byte offset to the TIFF header, then the block
+    return at + 4 + w.u32(at);
+  }
+
+  private static long exifItemId(FileWindow w, long iinf) throws IOException {
+    long end = iinf + w.u32(iinf);
+    int version = w.u8(iinf + 8);
+    long pos = iinf + 12;
+    long count = version == 0 ? w.u16(pos) : w.u32(pos);
+    pos += version == 0 ? 2 : 4;
+    for (long i = 0; i < count && i < MAX_SEGMENTS && pos + 8 <= end; i++) {
+      long size = w.u32(pos);
+      if (size < 8) return -1;
+      if (w.matches(pos + 4, "infe")) {
+        int v = w.u8(pos + 8);
+        if (v >= 2) {
+          long id = v == 2 ? w.u16(pos + 12) : w.u32(pos + 12);
+          long type = pos + 12 + (v == 2 ? 2 : 4) + 2;
+          if (w.matches(type, "Exif")) return id;
+        }
+      }
+      pos += size;
+    }
+    return -1;
+  }
+
+  // File offset of the first extent of an item (construction method 0 only)
+  private static long itemOffset(FileWindow w, long iloc, long wanted) throws IOException {
+    int version = w.u8(iloc + 8);
+    int sizes = w.u16(iloc + 12);
+    int offsetSize = sizes >> 12, lengthSize = (sizes >> 8) & 0xF;
+    int baseOffsetSize = (sizes >> 4) & 0xF, indexSize = version >= 1 ? sizes & 0xF : 0;
+    long pos = iloc + 14;
+    long count = version < 2 ? w.u16(pos) : w.u32(pos);
+    pos += version < 2 ? 2 : 4;
+    for (long i = 0; i < count && i < MAX_SEGMENTS; i++) {
+      long id = version < 2 ? w.u16(pos) : w.u32(pos);
+      pos += version < 2 ? 2 : 4;
+      int method = 0;
+      if (version >= 1) {
+        method = w.u16(pos) & 0xF;
+        pos += 2;
+      }
+      pos += 2;                                                // data_reference_index
+      long base = sized(w, pos, baseOffsetSize);
+      pos += baseOffsetSize;
+      int extents = w.u16(pos);
+      pos += 2;
+      long first = -1;
+      for (int e = 0; e < extents; e++) {
+        pos += indexSize;
+        long off = sized(w, pos, offsetSize);
+        pos += offsetSize + lengthSize;
+        if (e == 0) first = base + off;
+      }
+      if (id == wanted) return method == 0 ? first : -1;
+    }
+    return -1;
+  }
+
+  private static long sized(FileWindow w, long pos, int size) throws IOException {
+    return switch (size) {
+      case 0 -> 0;
+      case 4 -> w.u32(pos);
+      case 8 -> w.u64(pos);
+      default -> throw new IOException("Bad iloc field size " + size);
+    };
+  }
+
+  private static long findBox(FileWindow w, long pos, long end, String type) throws IOException {
+    for (int i = 0; pos + 8 <= end && i < MAX_SEGMENTS; i++) {
+      long size = w.u32(pos);
+      if (size == 1) size = w.u64(pos + 8);
+      else if (size == 0) size = end - pos;
+      if (size < 8) return -1;
+      if (w.matches(pos + 4, type)) return pos;
+      pos += size;
+    }
+    return -1;
+  }
+
+  private static Exif parseTiff(FileWindow w, long tiff) throws IOException {
+    if (w.matches(tiff, "II")) w.order(ByteOrder.LITTLE_ENDIAN);
+    else if (w.matches(tiff, "MM")) w.order(ByteOrder.BIG_ENDIAN);
+    else return null;
+
+    String[] v = new String[6];   // make, model, datetime, original, digitized, offset
+    long ifd0 = tiff + w.u32(tiff + 4);
+    long exifIfd = readIfd(w, tiff, ifd0, v);
+    if (exifIfd > 0) readIfd(w, tiff, tiff + exifIfd, v);
+
+    String when = v[3] != null ? v[3] : v[4] != null ? v[4] : v[2];
+    Long taken = toUnix(when, v[3] != null ? v[5] : null);
+    if (taken == null && v[0] == null && v[1] == null) return null;
+    return new Exif(taken, v[0], v[1]);
+  }
+
+  // Fills the tags we care about; returns the Exif sub-IFD offset found in this IFD, or 0
+  private static long readIfd(FileWindow w, long tiff, long ifd, String[] v) throws IOException {
+    int n = w.u16(ifd);
+    if (n > MAX_SEGMENTS) return 0;
+    long exifIfd = 0;
+    for (int e = 0; e < n; e++) {
+      long at = ifd + 2 + 12L * e;
+      int tag = w.u16(at);
+      switch (tag) {
+        case TAG_MAKE -> v[0] = ascii(w, tiff, at);
+        case TAG_MODEL -> v[1] = ascii(w, tiff, at);
+        case TAG_DATETIME -> v[2] = ascii(w, tiff, at);
+        case TAG_DATETIME_ORIGINAL -> v[3] = ascii(w, tiff, at);
+        case TAG_DATETIME_DIGITIZED -> v[4] = ascii(w, tiff, at);
+        case TAG_OFFSET_TIME_ORIGINAL -> v[5] = ascii(w, tiff, at);
+        case TAG_EXIF_IFD -> exifIfd = w.u32(at + 8);
+        default -> {}
+      }
+    }
+    return exifIfd;
+  }
+
+  private static String ascii(FileWindow w, long tiff, long entry) throws IOException {
+    if (w.u16(entry + 2) != 2) return null;                     // not ASCII
+    long count = Math.min(w.u32(entry + 4), MAX_ASCII);
+    long at = count <= 4 ? entry + 8 : tiff + w.u32(entry + 8);
+    StringBuilder sb = new StringBuilder((int) count);
+    for (long i = 0; i < count; i++) {
+      int c = w.u8(at + i);
+      if (c == 0) break;
+      sb.append((char) c);
+    }
+    String s = sb.toString().trim();
+    return s.isEmpty() ? null : s;
+  }
+
+  // EXIF dates carry no zone unless OffsetTimeOriginal is set; without it they are read as UTC
+  private static Long toUnix(String date, String offset) {
+    if (date == null || date.length() < 19 || date.startsWith("0000")) return null;
+    try {
+      LocalDateTime t = LocalDateTime.parse(date.substring(0, 19), EXIF_DATE);
+      ZoneOffset z = ZoneOffset.UTC;
+      if (offset != null) {
+        try { z = ZoneOffset.of(offset); } catch (RuntimeException ignore) { }
+      }
+      return t.toEpochSecond(z);
+    } catch (RuntimeException e) {
+      return null;
+    }
+  }
+}
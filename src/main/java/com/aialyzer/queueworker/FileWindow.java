@@ -0,0 +1,108 @@
+package com.aialyzer.queueworker;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+
+// Random access to an open file for header parsers. The first HEAD_SIZE bytes are read once
+// and shared by every parser; anything past that is served from one cached page. Buffers are
+// per thread, so only one window may be in use on a thread at a time.
+final class FileWindow {
+  static final int HEAD_SIZE = 64 * 1024;
+  private static final int PAGE = 8 * 1024;
+
+  private static final ThreadLocal<ByteBuffer[]> BUFFERS = ThreadLocal.withInitial(() -> new ByteBuffer[] {
+    ByteBuffer.allocate(HEAD_SIZE), ByteBuffer.allocate(PAGE)
+  });
+
+  private final FileChannel ch;
+  private final long size;
+  private final ByteBuffer head;
+  private final int headLen;
+  private final ByteBuffer page;
+  private long pageStart = -1;
+  private int pageLen;
+  private boolean bigEndian = true;
+
+  FileWindow(FileChannel ch) throws IOException {
+    this.ch = ch;
+    this.size = ch.size();
+    ByteBuffer[] bufs = BUFFERS.get();
+    this.head = bufs[0];
+    this.page = bufs[1];
+    head.clear();
+    if (size < HEAD_SIZE) head.limit((int) size);
+    while (head.hasRemaining() && ch.read(head, head.position()) >= 0) {
+      // keep reading until the head is full or the file ends
+    }
+    this.headLen = head.position();
+  }
+
+  FileChannel channel() {
+    return ch;
+  }
+
+  long size() {
+    return size;
+  }
+
+  // The cached head as a read-only buffer from offset 0
+  ByteBuffer head() {
+    return head.asReadOnlyBuffer().position(0).limit(headLen);
+  }
+
+  FileWindow order(ByteOrder order) {
+    this.bigEndian = order == ByteOrder.BIG_ENDIAN;
+    return this;
+  }
+
+  int u8(long pos) throws IOException {
+    if (pos < 0 || pos >= size) throw new EOFException();
+    if (pos < headLen) return head.get((int) pos) & 0xFF;
+    if (pos < pageStart || pos >= pageStart + pageLen) loadPage(pos);
+    if (pos >= pageStart + pageLen) throw new EOFException();
+    return page.get((int) (pos - pageStart)) & 0xFF;
+  }
+
+  int u16(long pos) throws IOException {
+    int a = u8(pos), b = u8(pos + 1);
+    return bigEndian ? (a << 8) | b : (b << 8) | a;
+  }
+
+  int u24(long pos) throws IOException {
+    int a = u8(pos), b = u8(pos + 1), c = u8(pos + 2);
+    return bigEndian ? (a << 16) | (b << 8) | c : (c << 16) | (b << 8) | a;
+  }
+
+  long u32(long pos) throws IOException {
+    long a = u16(pos), b = u16(pos + 2);
+    return bigEndian ? (a << 16) | b : (b << 16) | a;
+  }
+
+  long u64(long pos) throws IOException {
+    long a = u32(pos), b = u32(pos + 4);
+    return bigEndian ? (a << 32) | b : (b << 32) | a;
+  }
+
+  // True when the bytes at pos are the given ASCII text
+  boolean matches(long pos, String ascii) throws IOException {
+    if (pos + ascii.length() > size) return false;
+    for (int i = 0; i < ascii.length(); i++) {
+      if (u8(pos + i) != ascii.charAt(i)) return false;
+    }
+    return true;
+  }
+
+  private void loadPage(long pos) throws IOException {
+    page.clear();
+    pageStart = pos;
+    pageLen = 0;
+    while (page.hasRemaining()) {
+      int r = ch.read(page, pos + page.position());
+      if (r < 0) break;
+    }
+    pageLen = page.position();
+  }
+}
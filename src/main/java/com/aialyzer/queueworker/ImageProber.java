@@ -0,0 +1,184 @@
+package com.aialyzer.queueworker;
+
+import java.io.IOException;
+import java.nio.ByteOrder;
+import java.nio.channels.Channels;
+import java.util.Iterator;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+
+// Image dimensions from container headers only; pixels are never decoded.
+// Formats without a parser here fall back to an ImageIO reader's header (getWidth/getHeight).
+final class ImageProber {
+  record Dimensions(String mime, int width, int height) {}
+
+  private static final int MAX_SEGMENTS = 512;   // JPEG markers / TIFF IFDs / HEIF boxes walked
+
+  static {
+    ImageIO.setUseCache(false);   // header reads only, no temp files
+  }
+
+  private ImageProber() {}
+
+  // Null when the format is unknown or the header is damaged
+  static Dimensions probe(FileWindow w) {
+    try {
+      if (w.u8(0) == 0xFF && w.u8(1) == 0xD8) return jpeg(w);
+      if (w.matches(0, "\u0089PNG\r\n\u001a\n")) return png(w);
+      if (w.matches(0, "GIF87a") || w.matches(0, "GIF89a")) return gif(w);
+      if (w.matches(0, "BM")) return bmp(w);
+      if (w.matches(0, "II*\0") || w.matches(0, "MM\0*")) return tiff(w);
+      if (w.matches(0, "RIFF") && w.matches(8, "WEBP")) return webp(w);
+      if (w.matches(4, "ftyp")) return heif(w);
+    } catch (IOException | RuntimeException e) {
+      return null;
+    }
+    return imageIoHeader(w);
+  }
+
+  private static Dimensions jpeg(FileWindow w) throws IOException {
+    w.order(ByteOrder.BIG_ENDIAN);
+    long pos = 2;
+    for (int i = 0; i < MAX_SEGMENTS; i++) {
+      if (w.u8(pos) != 0xFF) return null;
+      int m = w.u8(pos + 1);
+      if (m == 0xFF) { pos++; continue; }                      // fill byte
+      if (m == 0x01 || (m >= 0xD0 && m <= 0xD7)) { pos += 2; continue; }   // no length
+      if (m == 0xD9 || m == 0xDA) return null;                 // EOI / SOS before any SOF
+      int len = w.u16(pos + 2);
+      if (m >= 0xC0 && m <= 0xCF && m != 0xC4 && m != 0xC8 && m != 0xCC) {
+        return new Dimensions("image/jpeg", w.u16(pos + 7), w.u16(pos + 5));
+      }
+      pos += 2 + len;
+    }
+    return null;
+  }
+
+  private static Dimensions png(FileWindow w) throws IOException {
+    w.order(ByteOrder.BIG_ENDIAN);
+    if (!w.matches(12, "IHDR")) return null;
+    return new Dimensions("image/png", (int) w.u32(16), (int) w.u32(20));
+  }
+
+  private static Dimensions gif(FileWindow w) throws IOException {
+    w.order(ByteOrder.LITTLE_ENDIAN);
+    return new Dimensions("image/gif", w.u16(6), w.u16(8));
+  }
+
+  private static Dimensions bmp(FileWindow w) throws IOException {
+    w.order(ByteOrder.LITTLE_ENDIAN);
+    long dib = w.u32(14);
+    if (dib == 12) return new Dimensions("image/bmp", w.u16(18), w.u16(20));   // OS/2 header
+    return new Dimensions("image/bmp", (int) w.u32(18), Math.abs((int) w.u32(22)));
+  }
+
+  // Largest image over the IFD chain and first-level SubIFDs, so raw files report the
+  // full-size image and not the preview in IFD0
+  private static Dimensions tiff(FileWindow w) throws IOException {
+    w.order(w.u8(0) == 'I' ? ByteOrder.LITTLE_ENDIAN : ByteOrder.BIG_ENDIAN);
+    long[] best = new long[2];
+    long ifd = w.u32(4);
+    for (int i = 0; ifd > 0 && i < 16; i++) {
+      ifd = tiffIfd(w, ifd, best, true);
+    }
+    return best[0] > 0 ? new Dimensions("image/tiff", (int) best[0], (int) best[1]) : null;
+  }
+
+  // Reads one IFD into best[] when it is larger; returns the offset of the next IFD
+  private static long tiffIfd(FileWindow w, long ifd, long[] best, boolean followSubIfds) throws IOException {
+    int n = w.u16(ifd);
+    if (n > MAX_SEGMENTS) return 0;
+    long width = 0, height = 0;
+    for (int e = 0; e < n; e++) {
+      long at = ifd + 2 + 12L * e;
+      int tag = w.u16(at);
+      int type = w.u16(at + 2);
+      if (tag == 256 || tag == 257) {
+        long v = type == 3 ? w.u16(at + 8) : w.u32(at + 8);
+        if (tag == 256) width = v; else height = v;
+      } else if (tag == 330 && followSubIfds) {                // SubIFDs
+        long count = w.u32(at + 4);
+        if (count == 1) {
+          tiffIfd(w, w.u32(at + 8), best, false);
+        } else {
+          long arr = w.u32(at + 8);
+          for (int k = 0; k < Math.min(count, 8); k++) tiffIfd(w, w.u32(arr + 4L * k), best, false);
+        }
+      }
+    }
+    if (width * height > best[0] * best[1]) {
+      best[0] = width;
+      best[1] = height;
+    }
+    return w.u32(ifd + 2 + 12L * n);
+  }
+
+  private static Dimensions webp(FileWindow w) throws IOException {
+    w.order(ByteOrder.LITTLE_ENDIAN);
+    if (w.matches(12, "VP8 ")) {
+      if (w.u8(23) != 0x9D || w.u8(24) != 0x01 || w.u8(25) != 0x2A) return null;
+      return new Dimensions("image/webp", w.u16(26) & 0x3FFF, w.u16(28) & 0x3FFF);
+    }
+    if (w.matches(12, "VP8L")) {
+      if (w.u8(20) != 0x2F) return null;
+      long bits = w.u32(21);
+      return new Dimensions("image/webp", (int) (bits & 0x3FFF) + 1, (int) ((bits >> 14) & 0x3FFF) + 1);
+    }
+    if (w.matches(12, "VP8X")) {
+      return new Dimensions("image/webp", w.u24(24) + 1, w.u24(27) + 1);
+    }
+    return null;
+  }
+
+  // HEIF/AVIF: largest 'ispe' property in meta/iprp/ipco (the primary image or its grid)
+  private static Dimensions heif(FileWindow w) throws IOException {
+    w.order(ByteOrder.BIG_ENDIAN);
+    String mime = w.matches(8, "avif") || w.matches(8, "avis") ? "image/avif" : "image/heic";
+    long[] best = new long[2];
+    ispe(w, 0, w.size(), best, 0);
+    return best[0] > 0 ? new Dimensions(mime, (int) best[0], (int) best[1]) : null;
+  }
+
+  private static void ispe(FileWindow w, long pos, long end, long[] best, int depth) throws IOException {
+    for (int i = 0; pos + 8 <= end && i < MAX_SEGMENTS; i++) {
+      long size = w.u32(pos);
+      int header = 8;
+      if (size == 1) { size = w.u64(pos + 8); header = 16; }
+      else if (size == 0) size = end - pos;
+      if (size < header) return;
+
+      if (w.matches(pos + 4, "meta") && depth == 0) {
+        ispe(w, pos + header + 4, pos + size, best, 1);          // full box: skip version/flags
+      } else if ((w.matches(pos + 4, "iprp") && depth == 1) || (w.matches(pos + 4, "ipco") && depth == 2)) {
+        ispe(w, pos + header, pos + size, best, depth + 1);
+      } else if (w.matches(pos + 4, "ispe") && depth == 3) {
+        long width = w.u32(pos + header + 4), height = w.u32(pos + header + 8);
+        if (width * height > best[0] * best[1]) {
+          best[0] = width;
+          best[1] = height;
+        }
+      }
+      pos += size;
+    }
+  }
+
+  private static Dimensions imageIoHeader(FileWindow w) {
+    try (ImageInputStream in = ImageIO.createImageInputStream(Channels.newInputStream(w.channel().position(0)))) {
+      if (in == null) return null;
+      Iterator<ImageReader> it = ImageIO.getImageReaders(in);
+      if (!it.hasNext()) return null;
+      ImageReader r = it.next();
+      try {
+        r.setInput(in, true, true);
+        String[] mimes = r.getOriginatingProvider().getMIMETypes();
+        String mime = mimes != null && mimes.length > 0 ? mimes[0] : null;
+        return new Dimensions(mime, r.getWidth(0), r.getHeight(0));
+      } finally {
+        r.dispose();
+      }
+    } catch (IOException | RuntimeException e) {
+      return null;
+    }
+  }
+}
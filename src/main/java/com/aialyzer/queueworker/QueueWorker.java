@@ -1,110 +1,357 @@
 package com.aialyzer.queueworker;
 
+import com.aialyzer.indexer.DatabaseManager;
+import com.aialyzer.indexer.DatabasePool;
+import com.aialyzer.indexer.FileType;
+import com.aialyzer.indexer.IoGovernor;
+import com.aialyzer.indexer.KnownFiles;
+import com.aialyzer.indexer.PathDictionary;
+import com.aialyzer.indexer.QueueSignal;
+import com.aialyzer.indexer.RateLimiter;
+import com.aialyzer.indexer.StatementCache;
+
 import java.io.IOException;
-import java.io.InputStream;
+import java.nio.channels.FileChannel;
 import java.nio.file.Files;
 import java.nio.file.LinkOption;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
 import java.nio.file.attribute.BasicFileAttributes;
-import java.security.DigestInputStream;
-import java.security.MessageDigest;
 import java.sql.*;
 import java.time.*;
-import java.util.HexFormat;
-import java.awt.image.BufferedImage;
-import javax.imageio.ImageIO;
-
-public class QueueWorker {
-  private final Connection cx;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class QueueWorker implements AutoCloseable {
+  private final DatabasePool db;
+  private final StatementCache stmts;   // writer statements; only used inside db.write
+  private final PathDictionary dirs;    // likewise
   private final boolean passive;
   private final int batchSize;
-  private final long idleSleepMs;
+  private final int deepBudget;       // hash tasks per batch while cheaper work is waiting
+  private final ExecutorService pool;   // null when running single threaded
+  private final IoGovernor governor;    // null: no pacing
+  private final KnownFiles known;       // null when the scanners run without a snapshot
+  private final RateLimiter pace;       // tasks per second, set by the governor
+  private final String workerId = ProcessHandle.current().pid() + "-" + UUID.randomUUID().toString().substring(0, 8);
+  private long claimSeq;
+
+  // passive tasks/sec on an idle host; the governor scales it down under load
+  private static final double PASSIVE_FULL_RATE = 1000;
+  private static final double PASSIVE_MIN_RATE = 1;
+
+  // longest idle wait; only matters for rows queued by other processes, which cannot signal
+  private static final long MAX_IDLE_WAIT_MS = 60_000;
+
+  // a crashed worker's batch becomes claimable again after this long
+  private static final long LEASE_SECONDS = 900;
+
+  private record Task(int id, String path, String kind, String lease) {}
+  private record Done(Task task, Outcome outcome) {}
+
+  // Result of the I/O phase of a task; applied inside the batch's write transaction
+  private interface Outcome {
+    void apply() throws SQLException;
+  }
+
+  private static final Outcome NOTHING = () -> {};
+
+  // The I/O phase threw; the task is retried with backoff
+  private record Failed(String error) implements Outcome {
+    public void apply() {}
+  }
+
+  // retries: BACKOFF_BASE_SECONDS * 2^(attempts-1), capped, then the task is dead-lettered
+  private static final int MAX_ATTEMPTS = 6;
+  private static final long BACKOFF_BASE_SECONDS = 60;
+  private static final long BACKOFF_CAP_SECONDS = 6 * 3600;
+
+  private static final String UPSERT_FILE_SQL =
+    "insert into files(" +
+    "  dir_id,name,size_bytes,mtime_unix,ctime_unix,last_scanned_unix,content_hash,kind,type_label,ext,quick_hash,file_key" +
+    ") values (?,?,?,?,?,?,?,?,?,?,?,?) " +
+    "on conflict(dir_id,name) do update set " +
+    "  content_hash=case when files.size_bytes=excluded.size_bytes and files.mtime_unix=excluded.mtime_unix " +
+    "    and files.quick_hash is excluded.quick_hash then files.content_hash end, " +
+    "  quick_hash=excluded.quick_hash, " +
+    "  size_bytes=excluded.size_bytes, " +
+    "  mtime_unix=excluded.mtime_unix, " +
+    "  ctime_unix=excluded.ctime_unix, " +
+    "  last_scanned_unix=excluded.last_scanned_unix, " +
+    "  kind=excluded.kind, " +
+    "  type_label=excluded.type_label, " +
+    "  ext=excluded.ext, " +
+    "  file_key=excluded.file_key, " +
+    "  prior_kind=null";
+
+  // (width, height, exif_taken_unix, camera_make, camera_model, dir_id, name)
+  private static final String UPSERT_IMAGE_SQL =
+    "insert into image_meta(file_id,width,height,exif_taken_unix,camera_make,camera_model) " +
+    "select id,?,?,?,?,? from files where dir_id=? and name=? " +
+    "on conflict(file_id) do update set " +
+    "  width=excluded.width, " +
+    "  height=excluded.height, " +
+    "  exif_taken_unix=excluded.exif_taken_unix, " +
+    "  camera_make=excluded.camera_make, " +
+    "  camera_model=excluded.camera_model";
+
+  private static final String DELETE_TASK_SQL = "delete from scan_queue where id=? and lease_owner=?";
+
+  // rows added to the files upsert and task delete batches since the last flush
+  private final List<Quick> pendingFiles = new ArrayList<>();
+  private int pendingImages;
+  private int pendingMissing;
+  private int pendingDeletes;
+
+  private record Quick(long size, Long hash) {}
+
+  // snapshot updates for rows written in the current batch; applied once it commits
+  private record KnownRow(String path, long size, long mtime, boolean hashed, boolean gone) {}
+  private final List<KnownRow> pendingKnown = new ArrayList<>();
+
+  public QueueWorker(DatabasePool db, boolean passive) throws Exception {
+    this(db, passive, 1);
+  }
+
+  public QueueWorker(DatabasePool db, boolean passive, int threads) throws Exception {
+    this(db, passive, threads, null);
+  }
+
+  public QueueWorker(DatabasePool db, boolean passive, int threads, IoGovernor governor) throws Exception {
+    this(db, passive, threads, governor, null);
+  }
 
-  public QueueWorker(Connection cx, boolean passive) throws Exception {
-    this.cx = cx;
+  public QueueWorker(DatabasePool db, boolean passive, int threads, IoGovernor governor,
+                     KnownFiles known) throws Exception {
+    this.db = db;
+    this.governor = governor;
+    this.known = known;
+    this.pace = governor == null ? null
+        : governor.govern(new RateLimiter(PASSIVE_FULL_RATE), PASSIVE_FULL_RATE, PASSIVE_MIN_RATE);
+    this.stmts = db.writerStatements();
+    this.dirs = db.writerPaths();
     this.passive = passive;
-    this.batchSize = passive ? 5 : 50;  
-    this.idleSleepMs = passive ? 1500 : 100;  
-    cx.setAutoCommit(false);
+    int n = Math.max(1, threads);
+    this.batchSize = passive ? 50 : Math.max(50, 250 * n);
+    this.deepBudget = passive ? 1 : Math.max(2, n);
+    this.pool = n > 1 ? Executors.newFixedThreadPool(n, daemonThreads("QueueWorker-")) : null;
   }
 
+  // Claim, then all file system work with no transaction open, then one short write that
+  // applies the outcomes, so scanners and other readers are not held up by slow disks.
   public void runOnce() throws Exception {
-  final long now = Instant.now().getEpochSecond();
+    final long now = Instant.now().getEpochSecond();
+    long seen = QueueSignal.global().version();   // read before claiming so no signal is missed
+    List<Task> tasks = claim(now);
 
-  
-  boolean prev = cx.getAutoCommit();
-  cx.setAutoCommit(true);
+    if (tasks.isEmpty()) {
+      QueueSignal.global().await(seen, idleWaitMillis(now));
+      return;
+    }
 
-  java.util.List<Integer> ids   = new java.util.ArrayList<>();
-  java.util.List<String>  paths = new java.util.ArrayList<>();
-  java.util.List<String>  kinds = new java.util.ArrayList<>();
+    List<Done> results = new ArrayList<>(tasks.size());
+    if (pool == null) {
+      for (Task t : tasks) {
+        if (pace != null) pace.acquire();
+        results.add(new Done(t, process(t)));
+      }
+    } else {
+      // readers/hashers run on the pool, all SQL stays on this thread
+      CompletionService<Done> done = new ExecutorCompletionService<>(pool);
+      for (Task t : tasks) {
+        if (pace != null) pace.acquire();
+        done.submit(() -> new Done(t, process(t)));
+      }
+      for (int i = 0; i < tasks.size(); i++) {
+        results.add(done.take().get());
+      }
+    }
 
-  try (PreparedStatement ps = cx.prepareStatement(
-      "select id,path,kind from scan_queue " +
-      "where not_before_unix<=? order by not_before_unix, kind, id limit ?")) {
-    ps.setLong(1, now);
-    ps.setInt(2, batchSize);
-    try (ResultSet rs = ps.executeQuery()) {
-      while (rs.next()) {
-        ids.add(rs.getInt(1));
-        paths.add(rs.getString(2));
-        kinds.add(rs.getString(3));
+    try {
+      db.write(cx -> {
+        for (Done d : results) finish(d.task(), d.outcome());
+        flushBatches();
+        return null;
+      });
+    } catch (SQLException e) {
+      // one bad row fails the whole batch: replay task by task so only that task is retried
+      // (and dead-lettered in the end) while the rest are applied
+      clearPending();
+      pendingKnown.clear();
+      try {
+        db.write(cx -> {
+          for (Done d : results) replay(cx, d.task(), d.outcome());
+          return null;
+        });
+      } catch (SQLException again) {
+        clearPending();
+        pendingKnown.clear();
+        again.addSuppressed(e);
+        throw again;
       }
     }
+    for (KnownRow k : pendingKnown) {
+      if (k.gone()) known.remove(k.path());
+      else known.put(k.path(), k.size(), k.mtime(), k.hashed());
+    }
+    pendingKnown.clear();
   }
 
-  if (ids.isEmpty()) {
-    Thread.sleep(idleSleepMs);
-    return;
+  // Leases due rows to this worker and returns them; expired leases of dead workers are taken over.
+  // Kinds are claimed in order of cost: file stats fill the batch first, hash work only gets a
+  // small share of it unless there is nothing else to do. Within a kind, priority then due time.
+  private List<Task> claim(long now) throws SQLException {
+    String owner = workerId + ":" + (++claimSeq);
+    return db.write(cx -> {
+      List<Task> tasks = new ArrayList<>();
+      int cheap = lease(owner, "file", batchSize, now);
+      cheap += lease(owner, "image_deep", batchSize - cheap, now);
+      int deep = cheap == 0 ? batchSize : Math.min(batchSize - cheap, deepBudget);
+      int leased = cheap + lease(owner, "hash", deep, now);
+      if (leased == 0) return tasks;
+      PreparedStatement ps = stmts.get("select id,path,kind from scan_queue where lease_owner=?");
+      ps.setString(1, owner);
+      try (ResultSet rs = ps.executeQuery()) {
+        while (rs.next()) {
+          tasks.add(new Task(rs.getInt(1), rs.getString(2), rs.getString(3), owner));
+        }
+      }
+      return tasks;
+    });
   }
 
+  // Time until the next row becomes claimable: the earliest due unleased row or expiring lease
+  private long idleWaitMillis(long now) throws SQLException {
+    return db.read(cx -> {
+      PreparedStatement ps = StatementCache.of(cx).get(
+          "select min(t) from (" +
+          "  select * from (select not_before_unix t from scan_queue where lease_until_unix is null " +
+          "    and +kind in ('file','image_deep','hash') order by not_before_unix limit 1) " +   // walks ix_queue_next_due
+          "  union all " +
+          "  select min(lease_until_unix) from scan_queue where lease_until_unix is not null)");
+      try (ResultSet rs = ps.executeQuery()) {
+        long next = rs.next() ? rs.getLong(1) : 0;
+        if (next == 0 || rs.wasNull()) return MAX_IDLE_WAIT_MS;
+        return Math.max(10, Math.min(MAX_IDLE_WAIT_MS, (next - now) * 1000));
+      }
+    });
+  }
 
-  cx.setAutoCommit(false);
-  try {
-    for (int i = 0; i < ids.size(); i++) {
-      int id = ids.get(i);
-      String path = paths.get(i);
-      String kind = kinds.get(i);
+  private int lease(String owner, String kind, int limit, long now) throws SQLException {
+    if (limit <= 0) return 0;
+    PreparedStatement lease = stmts.get(
+        "update scan_queue set lease_owner=?, lease_until_unix=? where id in (" +
+        "  select id from scan_queue " +
+        "  where kind=? and not_before_unix<=? and (lease_until_unix is null or lease_until_unix<=?) " +
+        "  order by priority, not_before_unix, id limit ?)");
+    lease.setString(1, owner);
+    lease.setLong(2, now + LEASE_SECONDS);
+    lease.setString(3, kind);
+    lease.setLong(4, now);
+    lease.setLong(5, now);
+    lease.setInt(6, limit);
+    return lease.executeUpdate();
+  }
 
-      boolean ok = handle(path, kind);
-      if (ok) deleteTask(id);
-      else    requeue(id);
+  @Override public void close() {
+    if (pool != null) pool.shutdownNow();
+  }
 
-      if (passive) Thread.sleep(100); 
+  // Batched path: a failure here rolls back the whole claim and runOnce replays it
+  private void finish(Task t, Outcome o) throws SQLException {
+    if (o instanceof Failed f) {
+      requeue(t, f.error());
+      return;
     }
-    cx.commit();
-  } catch (Exception e) {
-    cx.rollback();
-    throw e;
-  } finally {
-    cx.setAutoCommit(prev); 
+    o.apply();
+    deleteTask(t);
   }
-}
 
-  private boolean handle(String path, String kind) {
+  // One task under its own savepoint, flushed on its own; if its rows fail they are rolled
+  // back and the task is requeued with the error
+  private void replay(Connection cx, Task t, Outcome o) throws SQLException {
+    if (o instanceof Failed f) {
+      requeue(t, f.error());
+      flushBatches();
+      return;
+    }
+    int known = pendingKnown.size();
+    exec(cx, "savepoint task");
     try {
-      switch (kind) {
+      o.apply();
+      deleteTask(t);
+      flushBatches();
+      exec(cx, "release task");
+    } catch (SQLException e) {
+      clearPending();
+      while (pendingKnown.size() > known) pendingKnown.remove(pendingKnown.size() - 1);
+      exec(cx, "rollback to task");
+      exec(cx, "release task");
+      requeue(t, e.toString());
+      flushBatches();
+    }
+  }
+
+  private static void exec(Connection cx, String sql) throws SQLException {
+    try (Statement st = cx.createStatement()) {
+      st.execute(sql);
+    }
+  }
+
+  // Drops rows added to the batches but not yet executed
+  private void clearPending() throws SQLException {
+    stmts.get(UPSERT_FILE_SQL).clearBatch();
+    stmts.get(UPSERT_IMAGE_SQL).clearBatch();
+    stmts.get(DatabaseManager.MARK_MISSING_SQL).clearBatch();
+    stmts.get(DELETE_TASK_SQL).clearBatch();
+    pendingFiles.clear();
+    pendingImages = pendingMissing = pendingDeletes = 0;
+  }
+
+  // File system and decode work only; returns Failed when the task should be retried
+  private Outcome process(Task t) {
+    long started = System.nanoTime();
+    try {
+      Outcome o;
+      switch (t.kind()) {
         case "file" -> {
-          handleFile(path);
+          o = handleFile(t.path());
+        }
+        case "hash" -> {
+          o = handleHash(t.path());
         }
-        case "image_deep" -> {
-          if (passive) {                    // defer heavy work in passive mode
-            deferTask(path, "image_deep", Instant.now().getEpochSecond() + 3600);
-            return true;
-          }
-          handleImageDeep(path);
+        case "image_deep" -> {             // queued by older versions; the file pass covers it now
+          o = handleFile(t.path());
         }
         default -> {
-      
+          o = NOTHING;
         }
       }
-      if (passive) Thread.sleep(100);
-      return true;
+      return o;
     } catch (Exception e) {
-      return false;
+      return new Failed(e.toString());
+    } finally {
+      if (governor != null) governor.recordLatency(System.nanoTime() - started);
     }
   }
+
+  private static ThreadFactory daemonThreads(String prefix) {
+    AtomicInteger n = new AtomicInteger();
+    return r -> {
+      Thread t = new Thread(r, prefix + n.incrementAndGet());
+      t.setDaemon(true);
+      return t;
+    };
+  }
   
   private static String fileExtLower(Path p) {
   String name = p.getFileName().toString();
@@ -114,218 +361,213 @@ public class QueueWorker {
 
 
 
-  private void handleFile(String pathStr) throws Exception {
+  // One open, one pass: the cached head feeds the sniffer, the quick hash and, for images,
+  // the dimension and EXIF parsers; only the quick hash tail and far-away headers read more
+  private Outcome handleFile(String pathStr) throws Exception {
     final long now = Instant.now().getEpochSecond();
     Path p = Paths.get(pathStr);
-    String parent = (p.getParent() == null) ? "" : p.getParent().toString();
+    String dir = PathDictionary.dirOf(pathStr);
+    String name = PathDictionary.nameOf(pathStr);
 
     if (!Files.exists(p)) {
-      try (PreparedStatement ps = cx.prepareStatement(
-          "insert into files(path,parent_path,size_bytes,mtime_unix,ctime_unix,last_scanned_unix,content_hash,kind,type_label,ext) " +
-          "values(?,?,?,?,?,?,?,?,?,?) " +
-          "on conflict(path) do update set " +
-          "parent_path=excluded.parent_path, " +
-          "size_bytes=excluded.size_bytes, " +
-          "mtime_unix=excluded.mtime_unix, " +
-          "ctime_unix=excluded.ctime_unix, " +
-          "last_scanned_unix=excluded.last_scanned_unix, " +
-          "kind=excluded.kind, " +
-          "type_label=excluded.type_label, " +
-          "ext=excluded.ext")) {
-        ps.setString(1, pathStr);
-        ps.setString(2, parent);
-        ps.setLong  (3, 0L);
-        ps.setLong  (4, 0L);
-        ps.setLong  (5, 0L);
-        ps.setLong  (6, now);
-        ps.setObject(7, null);
-        ps.setString(8, "missing");
-        ps.setObject(9, null);
-        ps.setObject(10, null);
-        ps.executeUpdate();
-      }
-      return;
+      return () -> {
+        markMissing(dir, name, now);
+        if (known != null) pendingKnown.add(new KnownRow(pathStr, 0, 0, false, true));
+      };
     }
 
     BasicFileAttributes a = Files.readAttributes(p, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
     long size = a.size();
     long mtime = a.lastModifiedTime().toMillis() / 1000L;
     long ctime = a.creationTime() != null ? a.creationTime().toMillis() / 1000L : 0L;
-    String mime = safeProbeContentType(p);
     String ext = fileExtLower(p);
-
-    // Store file row
-    if (mime == null && "txt".equals(ext)) mime = "text/plain";
-
-    try (PreparedStatement ps = cx.prepareStatement(
-         "insert into files(" +
-          "  path,parent_path,size_bytes,mtime_unix,ctime_unix,last_scanned_unix,content_hash,kind,type_label,ext" +
-          ") values (?,?,?,?,?,?,?,?,?,?) " +
-          "on conflict(path) do update set " +
-          "  parent_path=excluded.parent_path, " +
-          "  size_bytes=excluded.size_bytes, " +
-          "  mtime_unix=excluded.mtime_unix, " +
-          "  ctime_unix=excluded.ctime_unix, " +
-          "  last_scanned_unix=excluded.last_scanned_unix, " +
-          "  kind=excluded.kind, " +
-          "  type_label=excluded.type_label, " +
-          "  ext=excluded.ext"
-        )) {
-      ps.setString(1, pathStr);
-      ps.setString(2, parent);
-      ps.setLong  (3, size);
-      ps.setLong  (4, mtime);
-      ps.setLong  (5, ctime);
-      ps.setLong  (6, now);
-      ps.setObject(7, null);
-      ps.setString(8, mime);
-      ps.setObject(9, null);
-      ps.setString(10, ext);
-      ps.executeUpdate();
+    final String fileKey = a.fileKey() == null ? null : a.fileKey().toString();
+
+    String sniffed = null;
+    Long quick = null;
+    ImageProber.Dimensions d = null;
+    ExifReader.Exif exif = null;
+    if (a.isRegularFile()) {
+      try (FileChannel ch = FileChannel.open(p, StandardOpenOption.READ)) {
+        FileWindow w = new FileWindow(ch);
+        sniffed = FileType.sniff(w.head(), pathStr);
+        if (size > 0) quick = ContentHasher.quickHash(w);
+        if (FileType.isImage(sniffed != null ? sniffed : FileType.mimeByExtension(pathStr))) {
+          d = ImageProber.probe(w);
+          exif = ExifReader.read(w);
+        }
+      } catch (IOException ignore) {
+      }
     }
 
-    // schedule deeper work when its an image
-    if (mime != null && mime.startsWith("image/")) {
-      deferTask(pathStr, "image_deep", Instant.now().getEpochSecond());
-    }
+    // Store file row
+    final String mime = sniffed != null ? sniffed
+        : d != null && d.mime() != null ? d.mime()
+        : FileType.mimeByExtension(pathStr);
+    final Long quickHash = quick;
+    final ImageProber.Dimensions dims = d;
+    final ExifReader.Exif meta = exif;
+    final String typeLabel = d != null ? d.width() + "x" + d.height() : null;   // width and height in type_label
+
+    return () -> {
+      long dirId = dirs.intern(dir);
+      addFileRow(dirId, name, size, mtime, ctime, now, mime, ext, quickHash, typeLabel, fileKey);
+      if (dims != null || meta != null) addImageMeta(dirId, name, dims, meta);
+      if (known != null) pendingKnown.add(new KnownRow(pathStr, size, mtime, quickHash != null, false));
+    };
   }
 
-  private void handleImageDeep(String pathStr) throws Exception {
-    final long now = Instant.now().getEpochSecond();
-    Path p = Paths.get(pathStr);
-    if (!Files.exists(p)) {
-      // File vanished, marks file
-      try (PreparedStatement ps = cx.prepareStatement(
-          "update files set last_scanned_unix=?, kind=? where path=?")) {
-        ps.setLong(1, now);
-        ps.setString(2, "missing");
-        ps.setString(3, pathStr);
-        ps.executeUpdate();
-      }
-      return;
-    }
+  // Queues a files upsert; written together with the task deletes at flushBatches()
+  private void addFileRow(long dirId, String name, long size, long mtime, long ctime,
+                          long now, String kind, String ext, Long quick, String typeLabel,
+                          String fileKey) throws SQLException {
+    PreparedStatement ps = stmts.get(UPSERT_FILE_SQL);
+    ps.setLong(1, dirId);
+    ps.setString(2, name);
+    ps.setLong  (3, size);
+    ps.setLong  (4, mtime);
+    ps.setLong  (5, ctime);
+    ps.setLong  (6, now);
+    ps.setObject(7, null);
+    ps.setString(8, kind);
+    ps.setString(9, typeLabel);
+    ps.setString(10, ext);
+    ps.setObject(11, quick);
+    ps.setString(12, fileKey);
+    ps.addBatch();
+    pendingFiles.add(new Quick(size, quick));
+  }
 
-    // Read dimensions
-    Integer width = null, height = null;
-    try (InputStream in = Files.newInputStream(p)) {
-      BufferedImage img = ImageIO.read(in);
-      if (img != null) {
-        width = img.getWidth();
-        height = img.getHeight();
-      }
-    } catch (IOException ignore) {
-    }
+  // The row keeps its data so the watcher can match a rename to it
+  private void markMissing(String dir, String name, long now) throws SQLException {
+    PreparedStatement ps = stmts.get(DatabaseManager.MARK_MISSING_SQL);
+    ps.setLong(1, now);
+    ps.setString(2, dir);
+    ps.setString(3, name);
+    ps.addBatch();
+    pendingMissing++;
+  }
 
+  // image_meta takes the file id from the files row, so it is written after the files batch
+  private void addImageMeta(long dirId, String name, ImageProber.Dimensions d, ExifReader.Exif exif) throws SQLException {
+    PreparedStatement ps = stmts.get(UPSERT_IMAGE_SQL);
+    ps.setObject(1, d != null ? d.width() : null);
+    ps.setObject(2, d != null ? d.height() : null);
+    ps.setObject(3, exif != null ? exif.takenUnix() : null);
+    ps.setObject(4, exif != null ? exif.make() : null);    // camera_make
+    ps.setObject(5, exif != null ? exif.model() : null);   // camera_model
+    ps.setLong(6, dirId);
+    ps.setString(7, name);
+    ps.addBatch();
+    pendingImages++;
+  }
 
-    if (width != null && height != null) {
-      try (PreparedStatement ps = cx.prepareStatement(
-          "insert into image_meta(path,width,height,exif_taken_unix,camera_make,camera_model) " +
-          "values (?,?,?,?,?,?) " +
-          "on conflict(path) do update set " +
-          "  width=excluded.width, " +
-          "  height=excluded.height"
-      )) {
-        ps.setString(1, pathStr);
-        ps.setObject(2, width);
-        ps.setObject(3, height);
-        ps.setObject(4, null);
-        ps.setObject(5, null);   // camera_make
-        ps.setObject(6, null);   // camera_model
-        ps.executeUpdate();
+  private void flushBatches() throws SQLException {
+    if (!pendingFiles.isEmpty()) {
+      stmts.get(UPSERT_FILE_SQL).executeBatch();
+      for (Quick q : pendingFiles) {
+        if (q.hash() != null) scheduleFullHashes(q);
       }
+      pendingFiles.clear();
     }
-
-
-    // caps reading on files larger than 256mb to avoid for passive mode
-    String sha256 = null;
-    try {
-      sha256 = sha256OfFile(p, 256L * 1024 * 1024);
-    } catch (IOException ignore) {
+    if (pendingImages > 0) {
+      pendingImages = 0;
+      stmts.get(UPSERT_IMAGE_SQL).executeBatch();
+    }
+    if (pendingMissing > 0) {
+      pendingMissing = 0;
+      stmts.get(DatabaseManager.MARK_MISSING_SQL).executeBatch();
+    }
+    if (pendingDeletes > 0) {
+      pendingDeletes = 0;
+      stmts.get(DELETE_TASK_SQL).executeBatch();
     }
-
-    // Update files and store hasg
-    try (PreparedStatement ps = cx.prepareStatement(
-    "update files set last_scanned_unix=?, content_hash=?, " +
-    "type_label=? where path=?")) {
-  ps.setLong(1, now);
-  if (sha256 == null) ps.setNull(2, Types.VARCHAR);
-  else ps.setString(2, sha256);
-
-  if (width != null && height != null) {
-    ps.setString(3, width + "x" + height); // store width and height in type_label
-  } else {
-    ps.setNull(3, Types.VARCHAR);
-  }
-
-  ps.setString(4, pathStr);
-  ps.executeUpdate();
   }
-}
 
-  private static String safeProbeContentType(Path p) {
-    try {
-      String mime = Files.probeContentType(p);
-      // probe returns null, fallback
-      if (mime == null) {
-        String name = p.getFileName().toString().toLowerCase();
-        if (name.endsWith(".jpg") || name.endsWith(".jpeg")) return "image/jpeg";
-        if (name.endsWith(".png"))  return "image/png";
-        if (name.endsWith(".gif"))  return "image/gif";
-        if (name.endsWith(".bmp"))  return "image/bmp";
-        if (name.endsWith(".webp")) return "image/webp";
-        if (name.endsWith(".heic") || name.endsWith(".heif")) return "image/heic";
-        if (name.endsWith(".tif") || name.endsWith(".tiff")) return "image/tiff";
-        if (name.endsWith(".mp4"))  return "video/mp4";
-        if (name.endsWith(".mov"))  return "video/quicktime";
-        if (name.endsWith(".mkv"))  return "video/x-matroska";
-        if (name.endsWith(".pdf"))  return "application/pdf";
-        if (name.endsWith(".txt"))  return "text/plain";
+  // Second tier: files sharing size and quick hash with another live file get a full sha256
+  private void scheduleFullHashes(Quick q) throws SQLException {
+    PreparedStatement ps = stmts.get(
+        "select d.path||f.name, f.content_hash from files f join dirs d on d.id=f.dir_id " +
+        "where f.size_bytes=? and f.quick_hash=? and coalesce(f.kind,'')<>'missing'");
+    ps.setLong(1, q.size());
+    ps.setLong(2, q.hash());
+    List<String> unhashed = new ArrayList<>();
+    int matches = 0;
+    try (ResultSet rs = ps.executeQuery()) {
+      while (rs.next()) {
+        matches++;
+        if (rs.getString(2) == null) unhashed.add(rs.getString(1));
       }
-      return mime;
-    } catch (IOException e) {
-      return null;
     }
+    if (matches < 2) return;
+    long now = Instant.now().getEpochSecond();
+    for (String path : unhashed) deferTask(path, "hash", now);
   }
 
-  private static String sha256OfFile(Path p, long maxBytes) throws IOException {
-    MessageDigest md;
-    try {
-      md = MessageDigest.getInstance("SHA-256");
-    } catch (Exception e) {
-      throw new IOException("SHA-256 not available", e);
-    }
-    long remaining = maxBytes;
-    try (InputStream fis = Files.newInputStream(p);
-         DigestInputStream dis = new DigestInputStream(fis, md)) {
-      byte[] buf = new byte[8192];
-      int r;
-      while ((r = dis.read(buf, 0, (int)Math.min(buf.length, remaining))) != -1) {
-        remaining -= r;
-        if (remaining <= 0) break;
-      }
-    }
-    byte[] digest = md.digest();
-    return HexFormat.of().formatHex(digest);
+  private Outcome handleHash(String pathStr) throws Exception {
+    Path p = Paths.get(pathStr);
+    if (!Files.isRegularFile(p)) return NOTHING;   // the file task marks it missing
+
+    BasicFileAttributes a = Files.readAttributes(p, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+    String sha256 = ContentHasher.sha256(p, Long.MAX_VALUE);
+    long size = a.size();
+    long mtime = a.lastModifiedTime().toMillis() / 1000L;
+    return () -> {
+      flushBatches();
+      // only if the row still describes the bytes that were hashed
+      PreparedStatement ps = stmts.get(
+          "update files set content_hash=? " +
+          "where dir_id=(select id from dirs where path=?) and name=? and size_bytes=? and mtime_unix=?");
+      ps.setString(1, sha256);
+      ps.setString(2, PathDictionary.dirOf(pathStr));
+      ps.setString(3, PathDictionary.nameOf(pathStr));
+      ps.setLong(4, size);
+      ps.setLong(5, mtime);
+      ps.executeUpdate();
+    };
   }
 
-  private void deleteTask(int id) throws SQLException {
-    try (PreparedStatement ps = cx.prepareStatement("delete from scan_queue where id=?")) {
-      ps.setInt(1, id); ps.executeUpdate();
-    }
+  private void deleteTask(Task t) throws SQLException {
+    PreparedStatement ps = stmts.get(DELETE_TASK_SQL);
+    ps.setInt(1, t.id()); ps.setString(2, t.lease()); ps.addBatch();
+    pendingDeletes++;
   }
 
-  private void requeue(int id) throws SQLException {
-    try (PreparedStatement ps = cx.prepareStatement(
-        "update scan_queue set attempts=attempts+1, not_before_unix=? WHERE id=?")) {
-      ps.setLong(1, Instant.now().getEpochSecond() + 300); ps.setInt(2, id); ps.executeUpdate();
+  // Exponential backoff with jitter; after MAX_ATTEMPTS the task moves to scan_dead
+  private void requeue(Task t, String error) throws SQLException {
+    PreparedStatement ps = stmts.get(
+        "update scan_queue set attempts=attempts+1, not_before_unix=?+min(?, ?<<min(attempts, 20)) + ?, " +
+        "  last_error=?, lease_owner=null, lease_until_unix=null " +
+        "where id=? and lease_owner=? and attempts+1<?");
+    long now = Instant.now().getEpochSecond();
+    ps.setLong(1, now);
+    ps.setLong(2, BACKOFF_CAP_SECONDS);
+    ps.setLong(3, BACKOFF_BASE_SECONDS);
+    ps.setLong(4, ThreadLocalRandom.current().nextLong(BACKOFF_BASE_SECONDS));
+    ps.setString(5, error);
+    ps.setInt(6, t.id());
+    ps.setString(7, t.lease());
+    ps.setInt(8, MAX_ATTEMPTS);
+    if (ps.executeUpdate() > 0) return;
+
+    PreparedStatement dead = stmts.get(
+        "insert or replace into scan_dead(path,kind,attempts,last_error,failed_unix) " +
+        "select path,kind,attempts+1,?,? from scan_queue where id=? and lease_owner=?");
+    dead.setString(1, error);
+    dead.setLong(2, now);
+    dead.setInt(3, t.id());
+    dead.setString(4, t.lease());
+    if (dead.executeUpdate() > 0) {
+      PreparedStatement del = stmts.get(DELETE_TASK_SQL);
+      del.setInt(1, t.id());
+      del.setString(2, t.lease());
+      del.addBatch();
+      pendingDeletes++;
     }
   }
 
   private void deferTask(String path, String kind, long notBefore) throws SQLException {
-    try (PreparedStatement ps = cx.prepareStatement(
-        "insert into scan_queue(path,kind,not_before_unix) values (?,?,?) " +
-        "on conflict(path,kind) do update set not_before_unix=excluded.not_before_unix")) {
-      ps.setString(1, path); ps.setString(2, kind); ps.setLong(3, notBefore); ps.executeUpdate();
-    }
+    PreparedStatement ps = stmts.get(DatabaseManager.ENQUEUE_SQL);
+    ps.setString(1, path); ps.setString(2, kind); ps.setLong(3, notBefore); ps.executeUpdate();
   }
 }
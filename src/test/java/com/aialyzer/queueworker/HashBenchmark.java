@@ -0,0 +1,101 @@
+package com.aialyzer.queueworker;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Random;
+
+// Compares ContentHasher with the old 8KB DigestInputStream loop. Kept under test sources so
+// it stays out of the jar:
+//   mvn test-compile exec:java -Dexec.classpathScope=test \
+//       -Dexec.mainClass=com.aialyzer.queueworker.HashBenchmark [-Dexec.args="<dir>"]
+// Without a directory it writes temp files of 64KB, 1MB, 16MB, 128MB and 1GB. The first
+// timing of each file warms the page cache, so the numbers compare CPU/syscall cost, not disk.
+public final class HashBenchmark {
+  private static final long[] SIZES = { 64L << 10, 1L << 20, 16L << 20, 128L << 20, 1L << 30 };
+  private static final int ROUNDS = 5;
+
+  public static void main(String[] args) throws Exception {
+    List<Path> files = new ArrayList<>();
+    Path tmp = null;
+    if (args.length > 0) {
+      try (var s = Files.list(Paths.get(args[0]))) {
+        s.filter(Files::isRegularFile).forEach(files::add);
+      }
+    } else {
+      tmp = Files.createTempDirectory("hashbench");
+      for (long size : SIZES) files.add(writeRandom(tmp.resolve(size + ".bin"), size));
+    }
+
+    System.out.printf("%-28s %12s %14s %14s%n", "file", "bytes", "stream MB/s", "channel MB/s");
+    try {
+      for (Path f : files) {
+        long size = Files.size(f);
+        String a = legacySha256(f, Long.MAX_VALUE);   // warm-up + reference
+        String b = ContentHasher.sha256(f, Long.MAX_VALUE);
+        if (!a.equals(b)) throw new IllegalStateException("hash mismatch for " + f);
+        double legacy = best(() -> legacySha256(f, Long.MAX_VALUE), size);
+        double channel = best(() -> ContentHasher.sha256(f, Long.MAX_VALUE), size);
+        System.out.printf("%-28s %,12d %14.1f %14.1f%n", f.getFileName(), size, legacy, channel);
+      }
+    } finally {
+      if (tmp != null) {
+        for (Path f : files) Files.deleteIfExists(f);
+        Files.deleteIfExists(tmp);
+      }
+    }
+  }
+
+  private interface Hash {
+    String run() throws IOException;
+  }
+
+  // best MB/s over a few rounds
+  private static double best(Hash h, long size) throws IOException {
+    long bestNanos = Long.MAX_VALUE;
+    for (int i = 0; i < ROUNDS; i++) {
+      long t = System.nanoTime();
+      h.run();
+      bestNanos = Math.min(bestNanos, System.nanoTime() - t);
+    }
+    return size / 1e6 / (bestNanos / 1e9);
+  }
+
+  private static Path writeRandom(Path p, long size) throws IOException {
+    byte[] buf = new byte[1 << 20];
+    new Random(size).nextBytes(buf);
+    try (OutputStream out = Files.newOutputStream(p)) {
+      for (long left = size; left > 0; left -= buf.length) out.write(buf, 0, (int) Math.min(buf.length, left));
+    }
+    return p;
+  }
+
+  // the QueueWorker hashing loop before ContentHasher
+  private static String legacySha256(Path p, long maxBytes) throws IOException {
+    MessageDigest md;
+    try {
+      md = MessageDigest.getInstance("SHA-256");
+    } catch (Exception e) {
+      throw new IOException("SHA-256 not available", e);
+    }
+    long remaining = maxBytes;
+    try (InputStream fis = Files.newInputStream(p);
+         DigestInputStream dis = new DigestInputStream(fis, md)) {
+      byte[] buf = new byte[8192];
+      int r;
+      while ((r = dis.read(buf, 0, (int)Math.min(buf.length, remaining))) != -1) {
+        remaining -= r;
+        if (remaining <= 0) break;
+      }
+    }
+    return HexFormat.of().formatHex(md.digest());
+  }
+}